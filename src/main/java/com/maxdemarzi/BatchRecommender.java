@@ -0,0 +1,146 @@
+package com.maxdemarzi;
+
+import net.openhft.koloboke.collect.map.LongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMap;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMaps;
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.neo4j.graphdb.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// Recommends for many users at once. Expansions of items and similar users are kept for the whole batch,
+// so an item shared by many users in the batch has its relationships read once.
+public class BatchRecommender implements ItemUsers {
+
+    private static final long[] NONE = new long[0];
+
+    private final GraphDatabaseService db;
+    private final ServiceState state;
+    private final HashLongObjMap<long[]> purchasers = HashLongObjMaps.newMutableMap();
+    private final HashLongObjMap<long[]> likers = HashLongObjMaps.newMutableMap();
+    private final HashLongObjMap<long[]> userItems = HashLongObjMaps.newMutableMap();
+    // Batches are not budgeted, every relationship of an item is read
+    private final Budget budget = new Budget();
+    private long cachedIds;
+
+    public BatchRecommender(GraphDatabaseService db) {
+        this.db = db;
+        this.state = ServiceState.forDatabase(db);
+    }
+
+    // Writes one {"username": ..., "items": [...]} object per user, flushing after every chunk.
+    // Items are copied from the rendered JSON cache straight to the stream, around the generator.
+    public void write(String[] usernames, int chunkSize, int k, String[] fields, OutputStream os) throws IOException {
+        JsonGenerator jg = ItemsOutput.JSON_FACTORY.createJsonGenerator(os, JsonEncoding.UTF8);
+        // Flushing the generator before each raw write must not flush the response too
+        jg.disable(JsonGenerator.Feature.FLUSH_PASSED_TO_STREAM);
+        jg.writeStartArray();
+        for (int start = 0; start < usernames.length; start += chunkSize) {
+            int end = Math.min(start + chunkSize, usernames.length);
+            try (Transaction tx = db.beginTx()) {
+                for (int i = start; i < end; i++) {
+                    jg.writeStartObject();
+                    jg.writeStringField("username", usernames[i]);
+                    jg.writeArrayFieldStart("items");
+                    jg.flush();
+                    boolean first = true;
+                    Node user = state.userIds.find(db, usernames[i]);
+                    if (user != null) {
+                        for (long itemId : recommend(user, k)) {
+                            byte[] json = state.itemJson.get(itemId, fields);
+                            if (json == null) {
+                                try {
+                                    json = state.itemJson.render(db.getNodeById(itemId), fields);
+                                } catch (NotFoundException e) {
+                                    // Deleted since it was recommended
+                                    continue;
+                                }
+                            }
+                            if (!first) {
+                                os.write(',');
+                            }
+                            os.write(json);
+                            first = false;
+                        }
+                    }
+                    jg.writeEndArray();
+                    jg.writeEndObject();
+                }
+            }
+            jg.flush();
+            os.flush();
+        }
+        jg.writeEndArray();
+        jg.close();
+    }
+
+    long[] recommend(Node user, int k) {
+        Scratch scratch = Scratch.get();
+        budget.reset(Long.MAX_VALUE, Integer.MAX_VALUE);
+        Service.scoreOtherUsers(user, this, scratch.likedItems, scratch.purchasedItems, scratch.otherUsers, budget);
+        long[] similarUsers = Service.findTopK(scratch.topK, scratch.otherUsers, Service.SIMILAR_USERS, 0);
+
+        scratch.exclusions.addAll(scratch.purchasedItems);
+        scratch.exclusions.addAll(scratch.likedItems);
+        scratch.exclusions.setDislikes(state.dislikes.get(user));
+        for (long similarUser : similarUsers) {
+            for (long itemId : items(similarUser)) {
+                if (!scratch.exclusions.contains(itemId)) {
+                    scratch.otherItems.addValue(itemId, 1);
+                }
+            }
+        }
+        return Service.findTopK(scratch.topK, scratch.otherItems, k, 0);
+    }
+
+    // Reads the item's users from the expansion caches, filling them on a miss
+    @Override
+    public void addToAll(Node item, RelationshipType type, int points, LongIntMap otherUsers, Budget budget) {
+        HashLongObjMap<long[]> cache = type == RelationshipTypes.PURCHASED ? purchasers : likers;
+        long[] users = cache.get(item.getId());
+        if (users == null) {
+            users = collect(item.getRelationships(type, Direction.INCOMING), true);
+            remember(cache, item.getId(), users);
+        }
+        int allowed = budget.allow(users.length);
+        for (int i = 0; i < allowed; i++) {
+            otherUsers.addValue(users[i], points);
+        }
+    }
+
+    private long[] items(long userId) {
+        long[] items = userItems.get(userId);
+        if (items == null) {
+            items = collect(db.getNodeById(userId).getRelationships(Direction.OUTGOING,
+                    RelationshipTypes.PURCHASED, RelationshipTypes.LIKES), false);
+            remember(userItems, userId, items);
+        }
+        return items;
+    }
+
+    private void remember(HashLongObjMap<long[]> cache, long id, long[] ids) {
+        if (cachedIds + ids.length > state.batchCachedIds) {
+            purchasers.clear();
+            likers.clear();
+            userItems.clear();
+            cachedIds = 0;
+        }
+        cache.put(id, ids);
+        cachedIds += ids.length;
+    }
+
+    private static long[] collect(Iterable<Relationship> rels, boolean startNodes) {
+        long[] ids = NONE;
+        int count = 0;
+        for (Relationship rel : rels) {
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(16, count * 2));
+            }
+            ids[count++] = startNodes ? rel.getStartNode().getId() : rel.getEndNode().getId();
+        }
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+}
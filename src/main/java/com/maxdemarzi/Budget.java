@@ -0,0 +1,81 @@
+package com.maxdemarzi;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Caps how many relationships a single request may read and, optionally, how long it may spend reading them.
+// Items whose degree is past the per item cap (supernodes) are only partially expanded,
+// and anything cut short marks the result as truncated.
+public class Budget {
+
+    // Leave the last tenth of the timeout for selecting and writing the results
+    private static final double DEADLINE_FRACTION = 0.9;
+
+    private final AtomicLong remaining = new AtomicLong();
+    private final AtomicInteger expansions = new AtomicInteger();
+    private final AtomicInteger completed = new AtomicInteger();
+    private long limit;
+    private int maxDegree;
+    private long deadline;
+    private volatile boolean truncated;
+
+    public void reset(long limit, int maxDegree) {
+        reset(limit, maxDegree, 0);
+    }
+
+    // A timeout of 0 means no deadline
+    public void reset(long limit, int maxDegree, long timeoutMs) {
+        this.limit = limit;
+        this.maxDegree = maxDegree;
+        this.deadline = timeoutMs == 0 ? 0 : System.nanoTime() + (long) (timeoutMs * 1000000L * DEADLINE_FRACTION);
+        this.remaining.set(limit);
+        this.expansions.set(0);
+        this.completed.set(0);
+        this.truncated = false;
+    }
+
+    // How many of the degree relationships of one expansion may be read, reserved up front
+    public int allow(int degree) {
+        expansions.incrementAndGet();
+        if (degree > 0 && timeUp()) {
+            return 0;
+        }
+        int wanted = Math.min(degree, maxDegree);
+        while (true) {
+            long left = remaining.get();
+            int granted = (int) Math.min(wanted, left);
+            if (granted == 0 || remaining.compareAndSet(left, left - granted)) {
+                if (granted < degree) {
+                    truncated = true;
+                }
+                if (granted == degree) {
+                    completed.incrementAndGet();
+                }
+                return granted;
+            }
+        }
+    }
+
+    // Also checked every so often inside long expansions
+    public boolean timeUp() {
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            truncated = true;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    public long touched() {
+        return limit - remaining.get();
+    }
+
+    // Share of the expansions that were granted in full
+    public double completed() {
+        int planned = expansions.get();
+        return planned == 0 ? 1.0 : (double) completed.get() / planned;
+    }
+}
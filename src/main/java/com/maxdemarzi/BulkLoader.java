@@ -0,0 +1,156 @@
+package com.maxdemarzi;
+
+import net.openhft.koloboke.collect.map.hash.HashLongObjMap;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMaps;
+import net.openhft.koloboke.collect.map.hash.HashObjLongMap;
+import net.openhft.koloboke.collect.map.hash.HashObjLongMaps;
+import net.openhft.koloboke.function.LongObjConsumer;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Builds a new store from CSV files with the batch inserter, without transactions, while the server is down.
+// In the CSV directory:
+//   items.csv     header of property names, the first is the item's key, then one item per row
+//   users.csv     the same for users, the first property must be username
+//   likes.csv, purchases.csv, dislikes.csv   optional, a header and then username,item key rows
+// Items are created first so their node ids stay small and the dislike bitmaps in the plain format.
+// Dislikes are collected into bitmaps in memory and written once per user. The username constraint is created
+// last, so its index is built in one pass when the inserter shuts down.
+public class BulkLoader {
+
+    private static final String USERNAME = "username";
+    private static final long UNKNOWN = -1;
+
+    private final File csvDir;
+    private final HashObjLongMap<String> items = HashObjLongMaps.newMutableMap();
+    private final HashObjLongMap<String> users = HashObjLongMaps.newMutableMap();
+    private final HashLongObjMap<DislikeBitmap.Builder> dislikes = HashLongObjMaps.newMutableMap();
+    private final Map<String, Object> stats = new LinkedHashMap<>();
+    private long skipped;
+
+    public BulkLoader(File csvDir) {
+        this.csvDir = csvDir;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: BulkLoader <new store directory> <csv directory>");
+            System.exit(1);
+        }
+        Map<String, Object> stats = new BulkLoader(new File(args[1])).load(new File(args[0]));
+        System.out.println(stats);
+    }
+
+    public Map<String, Object> load(File storeDir) throws IOException {
+        String[] existing = storeDir.list();
+        if (existing != null && existing.length > 0) {
+            throw new IllegalArgumentException(storeDir + " is not empty, the loader only builds new stores");
+        }
+        long start = System.currentTimeMillis();
+        Map<String, String> config = new HashMap<>();
+        config.put("dbms.pagecache.memory", System.getProperty("dbms.pagecache.memory", "2g"));
+        BatchInserter inserter = BatchInserters.inserter(storeDir.getAbsolutePath(), config);
+        try {
+            stats.put("items", loadNodes(inserter, "items.csv", Labels.Item, items, null));
+            stats.put("users", loadNodes(inserter, "users.csv", Labels.User, users, USERNAME));
+            stats.put("likes", loadEdges(inserter, "likes.csv", RelationshipTypes.LIKES));
+            stats.put("purchases", loadEdges(inserter, "purchases.csv", RelationshipTypes.PURCHASED));
+            stats.put("dislikes", loadEdges(inserter, "dislikes.csv", null));
+            writeDislikes(inserter);
+            stats.put("skipped", skipped);
+            inserter.createDeferredConstraint(Labels.User).assertPropertyIsUnique(USERNAME).create();
+        } finally {
+            inserter.shutdown();
+        }
+        stats.put("seconds", (System.currentTimeMillis() - start) / 1000.0);
+        return stats;
+    }
+
+    private long loadNodes(final BatchInserter inserter, String name, final Label label, final HashObjLongMap<String> keys,
+                           final String keyProperty) throws IOException {
+        File file = new File(csvDir, name);
+        final String[][] header = new String[1][];
+        final Map<String, Object> properties = new HashMap<>();
+        final long[] created = new long[1];
+        MappedCsv.read(file, new MappedCsv.Handler() {
+            @Override
+            public void row(long index, String[] fields, int count) {
+                if (index == 0) {
+                    header[0] = Arrays.copyOf(fields, count);
+                    if (keyProperty != null && !keyProperty.equals(header[0][0])) {
+                        throw new IllegalArgumentException("The first column must be " + keyProperty);
+                    }
+                    return;
+                }
+                if (keys.containsKey(fields[0])) {
+                    // Keys have to be unique, the first row wins
+                    skipped++;
+                    return;
+                }
+                properties.clear();
+                for (int i = 0; i < Math.min(count, header[0].length); i++) {
+                    properties.put(header[0][i], fields[i]);
+                }
+                keys.put(fields[0], inserter.createNode(properties, label));
+                created[0]++;
+            }
+        });
+        return created[0];
+    }
+
+    // Without a type the rows are dislikes, which go into the bitmaps instead of relationships
+    private long loadEdges(final BatchInserter inserter, String name, final RelationshipType type) throws IOException {
+        File file = new File(csvDir, name);
+        if (!file.exists()) {
+            return 0;
+        }
+        final Map<String, Object> none = Collections.emptyMap();
+        final long[] created = new long[1];
+        MappedCsv.read(file, new MappedCsv.Handler() {
+            @Override
+            public void row(long index, String[] fields, int count) {
+                if (index == 0) {
+                    return;
+                }
+                long user = count < 2 ? UNKNOWN : users.getOrDefault(fields[0], UNKNOWN);
+                long item = count < 2 ? UNKNOWN : items.getOrDefault(fields[1], UNKNOWN);
+                if (user == UNKNOWN || item == UNKNOWN) {
+                    skipped++;
+                    return;
+                }
+                if (type == null) {
+                    DislikeBitmap.Builder bitmap = dislikes.get(user);
+                    if (bitmap == null) {
+                        bitmap = new DislikeBitmap.Builder();
+                        dislikes.put(user, bitmap);
+                    }
+                    bitmap.add(item);
+                } else {
+                    inserter.createRelationship(user, item, type, none);
+                }
+                created[0]++;
+            }
+        });
+        return created[0];
+    }
+
+    private void writeDislikes(final BatchInserter inserter) {
+        dislikes.forEach(new LongObjConsumer<DislikeBitmap.Builder>() {
+            @Override
+            public void accept(long user, DislikeBitmap.Builder bitmap) {
+                inserter.setNodeProperty(user, DislikesCache.PROPERTY, bitmap.toBytes());
+            }
+        });
+        dislikes.clear();
+    }
+}
@@ -0,0 +1,176 @@
+package com.maxdemarzi;
+
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+// A set of 64 bit item node ids, kept as one Roaring bitmap per distinct upper 32 bits.
+// When every id fits in 32 bits it is written in the plain Roaring format, byte for byte what was stored before,
+// so existing properties are read as they are and small stores pay nothing. Otherwise it gets a versioned layout:
+//   0x7F, version, int partitions, then for each partition: int upper bits, int length, Roaring bytes
+// Plain Roaring data starts with its cookie, whose first byte is never 0x7F.
+public class DislikeBitmap {
+
+    static final byte VERSIONED = 0x7F;
+    static final byte VERSION = 1;
+
+    static final DislikeBitmap EMPTY = new DislikeBitmap(new int[0], new ImmutableRoaringBitmap[0]);
+
+    // Ascending. Upper bits of a node id are never negative, so signed order is fine.
+    private final int[] highs;
+    private final ImmutableRoaringBitmap[] parts;
+
+    private DislikeBitmap(int[] highs, ImmutableRoaringBitmap[] parts) {
+        this.highs = highs;
+        this.parts = parts;
+    }
+
+    // Reads either format. Nothing is copied, the bitmaps are backed by the bytes.
+    public static DislikeBitmap wrap(byte[] bytes) {
+        if (bytes.length == 0) {
+            return EMPTY;
+        }
+        if (bytes[0] != VERSIONED) {
+            return new DislikeBitmap(new int[]{0}, new ImmutableRoaringBitmap[]{new ImmutableRoaringBitmap(ByteBuffer.wrap(bytes))});
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.get();
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unknown dislikes format version " + version);
+        }
+        int count = buffer.getInt();
+        int[] highs = new int[count];
+        ImmutableRoaringBitmap[] parts = new ImmutableRoaringBitmap[count];
+        for (int i = 0; i < count; i++) {
+            highs[i] = buffer.getInt();
+            int length = buffer.getInt();
+            ByteBuffer part = buffer.slice();
+            part.limit(length);
+            parts[i] = new ImmutableRoaringBitmap(part);
+            buffer.position(buffer.position() + length);
+        }
+        return new DislikeBitmap(highs, parts);
+    }
+
+    public boolean contains(long itemId) {
+        int high = (int) (itemId >>> 32);
+        // The common case, everything in the first partition
+        if (highs.length == 1) {
+            return highs[0] == high && parts[0].contains((int) itemId);
+        }
+        int at = Arrays.binarySearch(highs, high);
+        return at >= 0 && parts[at].contains((int) itemId);
+    }
+
+    public long cardinality() {
+        long cardinality = 0;
+        for (ImmutableRoaringBitmap part : parts) {
+            cardinality += part.getCardinality();
+        }
+        return cardinality;
+    }
+
+    public Builder toBuilder() {
+        Builder builder = new Builder();
+        for (int i = 0; i < highs.length; i++) {
+            builder.parts.put(highs[i], parts[i].toMutableRoaringBitmap());
+        }
+        return builder;
+    }
+
+    public static class Builder {
+        private final TreeMap<Integer, MutableRoaringBitmap> parts = new TreeMap<>();
+
+        public void add(long itemId) {
+            int high = (int) (itemId >>> 32);
+            MutableRoaringBitmap part = parts.get(high);
+            if (part == null) {
+                part = new MutableRoaringBitmap();
+                parts.put(high, part);
+            }
+            part.add((int) itemId);
+        }
+
+        public void remove(long itemId) {
+            MutableRoaringBitmap part = parts.get((int) (itemId >>> 32));
+            if (part != null) {
+                part.remove((int) itemId);
+            }
+        }
+
+        public boolean contains(long itemId) {
+            MutableRoaringBitmap part = parts.get((int) (itemId >>> 32));
+            return part != null && part.contains((int) itemId);
+        }
+
+        public void addAll(Builder other) {
+            for (Map.Entry<Integer, MutableRoaringBitmap> entry : other.parts.entrySet()) {
+                MutableRoaringBitmap part = parts.get(entry.getKey());
+                if (part == null) {
+                    parts.put(entry.getKey(), entry.getValue().clone());
+                } else {
+                    part.or(entry.getValue());
+                }
+            }
+        }
+
+        public void removeAll(Builder other) {
+            for (Map.Entry<Integer, MutableRoaringBitmap> entry : other.parts.entrySet()) {
+                MutableRoaringBitmap part = parts.get(entry.getKey());
+                if (part != null) {
+                    part.andNot(entry.getValue());
+                }
+            }
+        }
+
+        public long cardinality() {
+            long cardinality = 0;
+            for (MutableRoaringBitmap part : parts.values()) {
+                cardinality += part.getCardinality();
+            }
+            return cardinality;
+        }
+
+        public byte[] toBytes() {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            try {
+                MutableRoaringBitmap low = parts.get(0);
+                int partitions = 0;
+                for (MutableRoaringBitmap part : parts.values()) {
+                    if (!part.isEmpty()) {
+                        partitions++;
+                    }
+                }
+                if (partitions == 0 || (partitions == 1 && low != null && !low.isEmpty())) {
+                    (low == null ? new MutableRoaringBitmap() : low).serialize(out);
+                } else {
+                    out.writeByte(VERSIONED);
+                    out.writeByte(VERSION);
+                    out.writeInt(partitions);
+                    for (Map.Entry<Integer, MutableRoaringBitmap> entry : parts.entrySet()) {
+                        MutableRoaringBitmap part = entry.getValue();
+                        if (!part.isEmpty()) {
+                            out.writeInt(entry.getKey());
+                            out.writeInt(part.serializedSizeInBytes());
+                            part.serialize(out);
+                        }
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                // Not thrown when writing to memory
+                throw new IllegalStateException(e);
+            }
+            return baos.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class DislikesCache implements TransactionEventHandler<List<Long>> {
+
+    public static final String PROPERTY = "dislikes";
+
+    private static final int SEGMENTS = 16;
+    // Rough cost of the map entry, boxed key and bitmap wrapper on top of the serialized bytes
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public DislikesCache(long maxBytes) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+    }
+
+    // The bitmap is backed directly by the property bytes, so a miss costs no deserialization copy
+    public DislikeBitmap get(Node user) {
+        Long id = user.getId();
+        Segment segment = segments[(int) (id & (SEGMENTS - 1))];
+        Entry entry;
+        synchronized (segment) {
+            entry = segment.get(id);
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry.bitmap;
+        }
+        misses.incrementAndGet();
+
+        // Only cache what we read if no invalidation happened in the meantime
+        long stamp = invalidations.get();
+        byte[] bytes = (byte[]) user.getProperty(PROPERTY, null);
+        if (bytes == null) {
+            return DislikeBitmap.EMPTY;
+        }
+        entry = new Entry(wrap(user, bytes), bytes.length + ENTRY_OVERHEAD);
+        synchronized (segment) {
+            if (invalidations.get() == stamp) {
+                segment.add(id, entry);
+            }
+        }
+        return entry.bitmap;
+    }
+
+    static DislikeBitmap.Builder read(Node user) {
+        byte[] bytes = (byte[]) user.getProperty(PROPERTY, null);
+        if (bytes == null) {
+            return new DislikeBitmap.Builder();
+        }
+        return wrap(user, bytes).toBuilder();
+    }
+
+    static void write(Node user, DislikeBitmap.Builder dislikes) {
+        user.setProperty(PROPERTY, dislikes.toBytes());
+    }
+
+    private static DislikeBitmap wrap(Node user, byte[] bytes) {
+        try {
+            return DislikeBitmap.wrap(bytes);
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("Unreadable dislikes on user " + user.getId(), e);
+        }
+    }
+
+    public void invalidate(long userId) {
+        Segment segment = segments[(int) (userId & (SEGMENTS - 1))];
+        synchronized (segment) {
+            invalidations.incrementAndGet();
+            segment.discard(userId);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        long entries = 0;
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                entries += segment.size();
+                bytes += segment.bytes;
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("invalidations", invalidations.get());
+        stats.put("entries", entries);
+        stats.put("bytes", bytes);
+        return stats;
+    }
+
+    // Entities can no longer be read after commit, so collect the affected users up front
+    @Override
+    public List<Long> beforeCommit(TransactionData data) throws Exception {
+        List<Long> changed = new ArrayList<>();
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            if (PROPERTY.equals(entry.key())) {
+                changed.add(entry.entity().getId());
+            }
+        }
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            if (PROPERTY.equals(entry.key())) {
+                changed.add(entry.entity().getId());
+            }
+        }
+        for (Node node : data.deletedNodes()) {
+            changed.add(node.getId());
+        }
+        return changed;
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, List<Long> changed) {
+        for (Long userId : changed) {
+            invalidate(userId);
+        }
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, List<Long> changed) {
+    }
+
+    private static class Entry {
+        final DislikeBitmap bitmap;
+        final int weight;
+
+        Entry(DislikeBitmap bitmap, int weight) {
+            this.bitmap = bitmap;
+            this.weight = weight;
+        }
+    }
+
+    // Access ordered, so iteration starts at the least recently used entry
+    private class Segment extends LinkedHashMap<Long, Entry> {
+        private final long maxBytes;
+        private long bytes;
+
+        Segment(long maxBytes) {
+            super(16, 0.75f, true);
+            this.maxBytes = maxBytes;
+        }
+
+        void add(Long id, Entry entry) {
+            Entry previous = put(id, entry);
+            if (previous != null) {
+                bytes -= previous.weight;
+            }
+            bytes += entry.weight;
+            Iterator<Entry> eldest = values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().weight;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        void discard(long id) {
+            Entry previous = remove(id);
+            if (previous != null) {
+                bytes -= previous.weight;
+            }
+        }
+    }
+}
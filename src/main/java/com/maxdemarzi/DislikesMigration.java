@@ -0,0 +1,179 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.*;
+import org.neo4j.kernel.DeadlockDetectedException;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Folds each user's DISLIKES relationships into their dislikes bitmap, keeping whatever the bitmap already held,
+// and optionally deletes the relationships afterwards. The user is locked while its relationships are read and its
+// bitmap written, so a dislike created at the same time either waits or is already there to be read.
+// Transactions commit every batch relationships, so live traffic never waits long on a lock, and one that loses a
+// deadlock is rolled back and retried.
+public class DislikesMigration extends UserJob {
+
+    private static final int ATTEMPTS = 10;
+    private static final long BACKOFF_MS = 5;
+
+    private final int batch;
+    private final boolean delete;
+
+    private final AtomicLong migrated = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+
+    public DislikesMigration(GraphDatabaseService db, File checkpoint, int threads, int chunkSize, int batch, boolean delete) {
+        super(db, checkpoint, threads, chunkSize);
+        this.batch = batch;
+        this.delete = delete;
+    }
+
+    @Override
+    protected void process(long[] users, int from, int to) {
+        int next = from;
+        while (next < to) {
+            Group group = foldWithRetries(users, next, to);
+            if (group.large != null) {
+                deleteWithRetries(group.large, group.largeCount);
+            }
+            next = group.end;
+        }
+    }
+
+    // Deleting a relationship locks its item, which other workers and live traffic lock too, so deadlocks happen.
+    // The transaction that lost is rolled back whole and tried again after a pause.
+    private Group foldWithRetries(long[] users, int start, int to) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return fold(users, start, to);
+            } catch (DeadlockDetectedException e) {
+                if (attempt == ATTEMPTS) {
+                    throw e;
+                }
+                backoff(attempt);
+            }
+        }
+    }
+
+    private void deleteWithRetries(long[] relationships, int count) {
+        for (int from = 0; from < count; from += batch) {
+            int to = Math.min(from + batch, count);
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    deleted.addAndGet(delete(relationships, from, to));
+                    break;
+                } catch (DeadlockDetectedException e) {
+                    if (attempt == ATTEMPTS) {
+                        throw e;
+                    }
+                    backoff(attempt);
+                }
+            }
+        }
+    }
+
+    // Folds users from start on in one transaction, until batch relationships have been touched. A user with more
+    // than batch relationships to delete is folded in a transaction of its own and its deletes are left to the caller.
+    // Counters only move once the transaction has committed.
+    private Group fold(long[] users, int start, int to) {
+        Group group = new Group();
+        long folded = 0;
+        long removed = 0;
+        int i = start;
+        try (Transaction tx = db.beginTx()) {
+            int touched = 0;
+            while (i < to && touched < batch) {
+                Node user;
+                try {
+                    user = db.getNodeById(users[i]);
+                } catch (NotFoundException e) {
+                    // Deleted since the ids were read
+                    i++;
+                    continue;
+                }
+                tx.acquireWriteLock(user);
+
+                DislikeBitmap.Builder dislikes = DislikesCache.read(user);
+                long[] relationships = new long[16];
+                int count = 0;
+                for (Relationship rel : user.getRelationships(RelationshipTypes.DISLIKES, Direction.OUTGOING)) {
+                    dislikes.add(rel.getEndNode().getId());
+                    if (count == relationships.length) {
+                        relationships = Arrays.copyOf(relationships, count * 2);
+                    }
+                    relationships[count++] = rel.getId();
+                }
+                if (count == 0) {
+                    i++;
+                    continue;
+                }
+                boolean large = delete && count > batch;
+                if (large && touched > 0) {
+                    // Starts the next transaction instead
+                    break;
+                }
+                DislikesCache.write(user, dislikes);
+                folded += count;
+                touched += count;
+                i++;
+                if (large) {
+                    // The bitmap is committed first, so deleting in later transactions loses nothing
+                    group.large = relationships;
+                    group.largeCount = count;
+                    break;
+                }
+                if (delete) {
+                    removed += delete(relationships, 0, count);
+                }
+            }
+            tx.success();
+        }
+        migrated.addAndGet(folded);
+        deleted.addAndGet(removed);
+        group.end = i;
+        return group;
+    }
+
+    // In the caller's transaction if there is one, in a transaction of its own otherwise
+    private int delete(long[] relationships, int from, int to) {
+        int removed = 0;
+        try (Transaction tx = db.beginTx()) {
+            for (int j = from; j < to; j++) {
+                try {
+                    db.getRelationshipById(relationships[j]).delete();
+                    removed++;
+                } catch (NotFoundException e) {
+                    // Deleted by someone else in the meantime
+                }
+            }
+            tx.success();
+        }
+        return removed;
+    }
+
+    private static void backoff(int attempt) {
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(BACKOFF_MS << attempt));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while backing off a deadlock", e);
+        }
+    }
+
+    private static class Group {
+        // The first user not folded yet
+        int end;
+        // Relationships of a user too large to delete in the folding transaction
+        long[] large;
+        int largeCount;
+    }
+
+    @Override
+    protected void addProgress(Map<String, Object> progress) {
+        progress.put("migrated", migrated.get());
+        progress.put("deleted", deleted.get());
+    }
+}
@@ -0,0 +1,177 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+// Collects dislike updates for a short window before writing them, so a user swiping through items costs one
+// transaction and one bitmap serialization per window instead of one per swipe. Users are spread over stripes,
+// each with its own lock and pending updates. A stripe is flushed window milliseconds after its first update,
+// in a single transaction for every user with updates in it. If that fails each user is written on their own,
+// so only the users that still fail see an error.
+public class DislikesWriter {
+
+    private static final Logger LOG = Logger.getLogger(DislikesWriter.class.getName());
+    private static final int STRIPES = 16;
+
+    private final GraphDatabaseService db;
+    private final long windowMs;
+    private final ScheduledExecutorService flusher;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong splits = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public DislikesWriter(GraphDatabaseService db, long windowMs, int threads) {
+        this.db = db;
+        this.windowMs = windowMs;
+        this.flusher = Executors.newScheduledThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "dislikes-writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    // Queues the items to be added to or removed from the user's dislikes, the batch completes once they are committed
+    public Batch update(long userId, long[] itemIds, boolean add) {
+        updates.incrementAndGet();
+        final Stripe stripe = stripes[(int) (userId & (STRIPES - 1))];
+        synchronized (stripe) {
+            Pending pending = stripe.batch.users.get(userId);
+            if (pending == null) {
+                pending = new Pending();
+                stripe.batch.users.put(userId, pending);
+            }
+            for (long itemId : itemIds) {
+                if (add) {
+                    pending.added.add(itemId);
+                    pending.removed.remove(itemId);
+                } else {
+                    pending.removed.add(itemId);
+                    pending.added.remove(itemId);
+                }
+            }
+            if (!stripe.scheduled) {
+                stripe.scheduled = true;
+                flusher.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(stripe);
+                    }
+                }, windowMs, TimeUnit.MILLISECONDS);
+            }
+            return stripe.batch;
+        }
+    }
+
+    private void flush(Stripe stripe) {
+        Batch batch;
+        synchronized (stripe) {
+            batch = stripe.batch;
+            stripe.batch = new Batch();
+            stripe.scheduled = false;
+        }
+        flushes.incrementAndGet();
+        try {
+            write(batch.users.entrySet());
+        } catch (RuntimeException e) {
+            // One user's failure shouldn't fail everyone coalesced with them, so each is written on its own
+            splits.incrementAndGet();
+            for (Map.Entry<Long, Pending> entry : batch.users.entrySet()) {
+                try {
+                    write(Collections.singleton(entry));
+                } catch (RuntimeException failure) {
+                    failures.incrementAndGet();
+                    batch.failures.put(entry.getKey(), failure);
+                    LOG.log(Level.WARNING, "Could not write the dislikes of user " + entry.getKey(), failure);
+                }
+            }
+        }
+        batch.done.countDown();
+    }
+
+    private void write(Collection<Map.Entry<Long, Pending>> users) {
+        int written = 0;
+        try (Transaction tx = db.beginTx()) {
+            for (Map.Entry<Long, Pending> entry : users) {
+                Node user;
+                try {
+                    user = db.getNodeById(entry.getKey());
+                } catch (NotFoundException e) {
+                    continue;
+                }
+                tx.acquireWriteLock(user);
+                DislikeBitmap.Builder dislikes = DislikesCache.read(user);
+                dislikes.addAll(entry.getValue().added);
+                dislikes.removeAll(entry.getValue().removed);
+                DislikesCache.write(user, dislikes);
+                written++;
+            }
+            tx.success();
+        }
+        writes.addAndGet(written);
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("updates", updates.get());
+        stats.put("flushes", flushes.get());
+        stats.put("writes", writes.get());
+        stats.put("splits", splits.get());
+        stats.put("failures", failures.get());
+        return stats;
+    }
+
+    void stop() {
+        flusher.shutdown();
+    }
+
+    private static class Stripe {
+        Batch batch = new Batch();
+        boolean scheduled;
+    }
+
+    private static class Pending {
+        final DislikeBitmap.Builder added = new DislikeBitmap.Builder();
+        final DislikeBitmap.Builder removed = new DislikeBitmap.Builder();
+    }
+
+    public static class Batch {
+        private final HashMap<Long, Pending> users = new HashMap<>();
+        // Written before done is counted down, read after it
+        private final HashMap<Long, RuntimeException> failures = new HashMap<>();
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        // False if the batch wasn't written in time, rethrows whatever stopped this user's updates from being written
+        public boolean await(long userId, long timeoutMs) throws InterruptedException {
+            if (!done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+            RuntimeException failure = failures.get(userId);
+            if (failure != null) {
+                throw failure;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.maxdemarzi;
+
+import net.openhft.koloboke.collect.LongCursor;
+import net.openhft.koloboke.collect.set.LongSet;
+import net.openhft.koloboke.collect.set.hash.HashLongSet;
+import net.openhft.koloboke.collect.set.hash.HashLongSets;
+import org.roaringbitmap.buffer.MutableRoaringBitmap;
+
+// Items a user should never be recommended, checked by id as candidates are scored
+public class Exclusions {
+
+    private final MutableRoaringBitmap items = new MutableRoaringBitmap();
+    // Node ids past the int range do not fit in a RoaringBitmap
+    private final HashLongSet largeItems = HashLongSets.newMutableSet();
+    private DislikeBitmap dislikes = DislikeBitmap.EMPTY;
+
+    public void clear() {
+        items.clear();
+        largeItems.clear();
+        dislikes = DislikeBitmap.EMPTY;
+    }
+
+    public void add(long itemId) {
+        if (itemId <= Integer.MAX_VALUE) {
+            items.add((int) itemId);
+        } else {
+            largeItems.add(itemId);
+        }
+    }
+
+    public void addAll(LongSet itemIds) {
+        LongCursor cursor = itemIds.cursor();
+        while (cursor.moveNext()) {
+            add(cursor.elem());
+        }
+    }
+
+    public void setDislikes(DislikeBitmap dislikes) {
+        this.dislikes = dislikes;
+    }
+
+    public boolean contains(long itemId) {
+        if (dislikes.contains(itemId)) {
+            return true;
+        }
+        if (itemId > Integer.MAX_VALUE) {
+            return largeItems.contains(itemId);
+        }
+        return items.contains((int) itemId);
+    }
+}
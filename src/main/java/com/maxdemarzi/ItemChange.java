@@ -0,0 +1,38 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.event.TransactionData;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// A PURCHASED or LIKES relationship created or deleted by a transaction, read in beforeCommit
+// while its nodes are still accessible
+class ItemChange {
+    final long userId;
+    final long itemId;
+    final boolean purchased;
+    final boolean added;
+
+    ItemChange(Relationship rel, boolean added) {
+        this.userId = rel.getStartNode().getId();
+        this.itemId = rel.getEndNode().getId();
+        this.purchased = rel.isType(RelationshipTypes.PURCHASED);
+        this.added = added;
+    }
+
+    static List<ItemChange> collect(TransactionData data) {
+        List<ItemChange> changes = new ArrayList<>();
+        for (Relationship rel : data.createdRelationships()) {
+            if (rel.isType(RelationshipTypes.PURCHASED) || rel.isType(RelationshipTypes.LIKES)) {
+                changes.add(new ItemChange(rel, true));
+            }
+        }
+        for (Relationship rel : data.deletedRelationships()) {
+            if (rel.isType(RelationshipTypes.PURCHASED) || rel.isType(RelationshipTypes.LIKES)) {
+                changes.add(new ItemChange(rel, false));
+            }
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,178 @@
+package com.maxdemarzi;
+
+import org.codehaus.jackson.JsonEncoding;
+import org.codehaus.jackson.JsonGenerator;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Items rendered as UTF-8 JSON objects, one per item and field list, so popular items are written to a response
+// by copying bytes instead of reading their properties again. Dropped when any property of the item changes.
+public class ItemJsonCache implements TransactionEventHandler<List<Long>> {
+
+    private static final int SEGMENTS = 16;
+    // Rough cost of the map entries and boxed key on top of the rendered bytes
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public ItemJsonCache(long maxBytes) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+    }
+
+    // Null when the item hasn't been rendered with these fields since it last changed
+    public byte[] get(long itemId, String[] fields) {
+        Segment segment = segments[(int) (itemId & (SEGMENTS - 1))];
+        byte[] json = null;
+        synchronized (segment) {
+            Entry entry = segment.get(itemId);
+            if (entry != null) {
+                json = entry.variants.get(key(fields));
+            }
+        }
+        if (json == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return json;
+    }
+
+    // Renders the item in the caller's transaction and keeps the result
+    public byte[] render(Node item, String[] fields) throws IOException {
+        long itemId = item.getId();
+        Segment segment = segments[(int) (itemId & (SEGMENTS - 1))];
+        // Only cache what we read if the item wasn't changed in the meantime
+        long stamp;
+        synchronized (segment) {
+            stamp = segment.invalidations;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(128);
+        JsonGenerator jg = ItemsOutput.JSON_FACTORY.createJsonGenerator(baos, JsonEncoding.UTF8);
+        ItemsOutput.writeItem(item, fields, jg);
+        jg.close();
+        byte[] json = baos.toByteArray();
+        synchronized (segment) {
+            if (segment.invalidations == stamp) {
+                segment.add(itemId, key(fields), json);
+            }
+        }
+        return json;
+    }
+
+    public void invalidate(long itemId) {
+        Segment segment = segments[(int) (itemId & (SEGMENTS - 1))];
+        synchronized (segment) {
+            segment.invalidations++;
+            if (segment.discard(itemId)) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public Map<String, Object> stats() {
+        long entries = 0;
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                entries += segment.size();
+                bytes += segment.bytes;
+            }
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        stats.put("invalidations", invalidations.get());
+        stats.put("entries", entries);
+        stats.put("bytes", bytes);
+        return stats;
+    }
+
+    // Field lists compare by content, a null list (every property) is its own key
+    private static List<String> key(String[] fields) {
+        return fields == null ? null : Arrays.asList(fields);
+    }
+
+    @Override
+    public List<Long> beforeCommit(TransactionData data) throws Exception {
+        List<Long> changed = new ArrayList<>();
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            changed.add(entry.entity().getId());
+        }
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            changed.add(entry.entity().getId());
+        }
+        for (Node node : data.deletedNodes()) {
+            changed.add(node.getId());
+        }
+        return changed;
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, List<Long> changed) {
+        for (Long itemId : changed) {
+            invalidate(itemId);
+        }
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, List<Long> changed) {
+    }
+
+    private static class Entry {
+        final HashMap<List<String>, byte[]> variants = new HashMap<>(4);
+        int weight;
+    }
+
+    // Access ordered, so iteration starts at the least recently used item
+    private class Segment extends LinkedHashMap<Long, Entry> {
+        private final long maxBytes;
+        private long bytes;
+        private long invalidations;
+
+        Segment(long maxBytes) {
+            super(16, 0.75f, true);
+            this.maxBytes = maxBytes;
+        }
+
+        void add(Long itemId, List<String> key, byte[] json) {
+            Entry entry = get(itemId);
+            if (entry == null) {
+                entry = new Entry();
+                put(itemId, entry);
+            }
+            byte[] previous = entry.variants.put(key, json);
+            int weight = json.length + ENTRY_OVERHEAD - (previous == null ? 0 : previous.length + ENTRY_OVERHEAD);
+            entry.weight += weight;
+            bytes += weight;
+            Iterator<Entry> eldest = values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().weight;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        boolean discard(long itemId) {
+            Entry previous = remove(itemId);
+            if (previous == null) {
+                return false;
+            }
+            bytes -= previous.weight;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.maxdemarzi;
+
+import net.openhft.koloboke.collect.map.LongIntMap;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// For every Item, the ids of the users that purchased or liked it.
+// Bitmaps are never mutated once published, writers swap in updated copies.
+public class ItemUserIndex implements ItemUsers, TransactionEventHandler<ItemUserIndex.Changes> {
+
+    private static final RoaringBitmap EMPTY = new RoaringBitmap();
+
+    private final ConcurrentHashMap<Long, RoaringBitmap> purchasers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, RoaringBitmap> likers = new ConcurrentHashMap<>();
+
+    private volatile boolean ready;
+    // User ids past the int range can't be indexed, requests fall back to traversal
+    private volatile boolean overflow;
+    private boolean building;
+    private final List<Changes> pending = new ArrayList<>();
+    // Only kept in step once registered, so nothing is collected for commits when the index is off
+    private GraphDatabaseService db;
+
+    static class Changes {
+        final List<ItemChange> items = new ArrayList<>();
+        final List<Long> deletedNodes = new ArrayList<>();
+    }
+
+    public boolean isReady() {
+        return ready && !overflow;
+    }
+
+    public RoaringBitmap purchasers(long itemId) {
+        RoaringBitmap users = purchasers.get(itemId);
+        return users == null ? EMPTY : users;
+    }
+
+    public RoaringBitmap likers(long itemId) {
+        RoaringBitmap users = likers.get(itemId);
+        return users == null ? EMPTY : users;
+    }
+
+    // Registered when item.index is set, before the build starts, so nothing committed during the build is missed
+    public synchronized void register(GraphDatabaseService db) {
+        if (this.db == null) {
+            this.db = db;
+            db.registerTransactionEventHandler(this);
+        }
+    }
+
+    @Override
+    public void addToAll(Node item, RelationshipType type, int points, LongIntMap otherUsers, Budget budget) {
+        RoaringBitmap users = type == RelationshipTypes.PURCHASED ? purchasers(item.getId()) : likers(item.getId());
+        int allowed = budget.allow(users.getCardinality());
+        IntIterator iterator = users.getIntIterator();
+        while (allowed-- > 0 && iterator.hasNext()) {
+            otherUsers.addValue(iterator.next(), points);
+            if ((allowed & 1023) == 0 && budget.timeUp()) {
+                break;
+            }
+        }
+    }
+
+    public void build(GraphDatabaseService db) {
+        synchronized (this) {
+            if (ready || building) {
+                return;
+            }
+            register(db);
+            building = true;
+        }
+        try (Transaction tx = db.beginTx()) {
+            ResourceIterator<Node> items = db.findNodes(Labels.Item);
+            while (items.hasNext()) {
+                Node item = items.next();
+                purchasers.put(item.getId(), collect(item, RelationshipTypes.PURCHASED));
+                likers.put(item.getId(), collect(item, RelationshipTypes.LIKES));
+            }
+        }
+        // Replay whatever committed while we were reading, adds and removes are idempotent
+        synchronized (this) {
+            apply(pending);
+            pending.clear();
+            building = false;
+            ready = true;
+        }
+    }
+
+    private RoaringBitmap collect(Node item, RelationshipType type) {
+        RoaringBitmap users = new RoaringBitmap();
+        for (Relationship rel : item.getRelationships(type, Direction.INCOMING)) {
+            long userId = rel.getStartNode().getId();
+            if (userId > Integer.MAX_VALUE) {
+                overflow = true;
+            } else {
+                users.add((int) userId);
+            }
+        }
+        return users;
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("ready", isReady());
+        stats.put("items", purchasers.size());
+        return stats;
+    }
+
+    @Override
+    public Changes beforeCommit(TransactionData data) throws Exception {
+        Changes changes = new Changes();
+        for (ItemChange change : ItemChange.collect(data)) {
+            if (change.added || !remains(data, change)) {
+                changes.items.add(change);
+            }
+        }
+        for (Node node : data.deletedNodes()) {
+            changes.deletedNodes.add(node.getId());
+        }
+        return changes;
+    }
+
+    // A user with another edge of the same type to the item is still one of its users
+    private boolean remains(TransactionData data, ItemChange deleted) {
+        Node user;
+        try {
+            user = db.getNodeById(deleted.userId);
+        } catch (NotFoundException e) {
+            return false;
+        }
+        if (data.isDeleted(user)) {
+            return false;
+        }
+        RelationshipType type = deleted.purchased ? RelationshipTypes.PURCHASED : RelationshipTypes.LIKES;
+        for (Relationship rel : user.getRelationships(Direction.OUTGOING, type)) {
+            if (rel.getEndNode().getId() == deleted.itemId) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void afterCommit(TransactionData data, Changes changes) {
+        if (building) {
+            pending.add(changes);
+        } else if (ready) {
+            apply(Collections.singletonList(changes));
+        }
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, Changes changes) {
+    }
+
+    private void apply(List<Changes> transactions) {
+        for (Changes changes : transactions) {
+            apply(changes);
+        }
+    }
+
+    // Copy each touched bitmap once per transaction, then publish the copies
+    private void apply(Changes changes) {
+        Map<Long, RoaringBitmap> purchased = new HashMap<>();
+        Map<Long, RoaringBitmap> liked = new HashMap<>();
+        for (ItemChange change : changes.items) {
+            if (change.userId > Integer.MAX_VALUE) {
+                overflow = true;
+                continue;
+            }
+            RoaringBitmap users = change.purchased
+                    ? copyOf(purchased, purchasers, change.itemId)
+                    : copyOf(liked, likers, change.itemId);
+            if (change.added) {
+                users.add((int) change.userId);
+            } else {
+                users.remove((int) change.userId);
+            }
+        }
+        purchasers.putAll(purchased);
+        likers.putAll(liked);
+        // Deleted items leave the index. Deleted users aren't keys, so removing them does nothing.
+        for (Long nodeId : changes.deletedNodes) {
+            purchasers.remove(nodeId);
+            likers.remove(nodeId);
+        }
+    }
+
+    private static RoaringBitmap copyOf(Map<Long, RoaringBitmap> copies, Map<Long, RoaringBitmap> index, long itemId) {
+        RoaringBitmap users = copies.get(itemId);
+        if (users == null) {
+            RoaringBitmap current = index.get(itemId);
+            users = current == null ? new RoaringBitmap() : current.clone();
+            copies.put(itemId, users);
+        }
+        return users;
+    }
+}
@@ -0,0 +1,13 @@
+package com.maxdemarzi;
+
+import net.openhft.koloboke.collect.map.LongIntMap;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.RelationshipType;
+
+// Where the users who purchased or liked an item are read from when other users are scored,
+// the relationship chains, the item user index or a batch's expansion caches
+public interface ItemUsers {
+
+    // Gives points to every user with a relationship of the type to the item, as far as the budget allows
+    void addToAll(Node item, RelationshipType type, int points, LongIntMap otherUsers, Budget budget);
+}
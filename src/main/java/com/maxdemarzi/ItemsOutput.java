@@ -0,0 +1,143 @@
+package com.maxdemarzi;
+
+import org.codehaus.jackson.JsonFactory;
+import org.codehaus.jackson.JsonGenerator;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.Transaction;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+// Streams the recommended items as a JSON array of their cached fragments, rendering misses in its own transaction
+public class ItemsOutput implements StreamingOutput {
+
+    // Asking for this field writes the item's node id
+    public static final String NODE_ID = "_id";
+
+    static final JsonFactory JSON_FACTORY = new ObjectMapper().getJsonFactory();
+
+    private final GraphDatabaseService db;
+    private final long[] itemIds;
+    private final String[] fields;
+    private final Metrics metrics;
+
+    public ItemsOutput(GraphDatabaseService db, long[] itemIds, String[] fields) {
+        this(db, itemIds, fields, null);
+    }
+
+    // With metrics, the time spent and bytes written are recorded by the thread doing the writing
+    public ItemsOutput(GraphDatabaseService db, long[] itemIds, String[] fields, Metrics metrics) {
+        this.db = db;
+        this.itemIds = itemIds;
+        this.fields = fields;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void write(OutputStream os) throws IOException, WebApplicationException {
+        if (metrics == null) {
+            writeItems(os);
+            return;
+        }
+        long start = System.nanoTime();
+        CountingOutputStream counting = new CountingOutputStream(os);
+        writeItems(counting);
+        Metrics.Recorder recorder = metrics.recorder();
+        recorder.time(Metrics.Phase.SERIALIZATION, start);
+        recorder.count(Metrics.Counter.BYTES, counting.count);
+    }
+
+    private void writeItems(OutputStream os) throws IOException {
+        ItemJsonCache cache = ServiceState.forDatabase(db).itemJson;
+        os.write('[');
+        boolean first = true;
+        // Only opened once an item isn't cached
+        Transaction tx = null;
+        try {
+            for (long itemId : itemIds) {
+                byte[] json = cache.get(itemId, fields);
+                if (json == null) {
+                    if (tx == null) {
+                        tx = db.beginTx();
+                    }
+                    try {
+                        json = cache.render(db.getNodeById(itemId), fields);
+                    } catch (NotFoundException e) {
+                        // Deleted since it was recommended
+                        continue;
+                    }
+                }
+                if (!first) {
+                    os.write(',');
+                }
+                os.write(json);
+                first = false;
+            }
+        } finally {
+            if (tx != null) {
+                tx.close();
+            }
+        }
+        os.write(']');
+        os.flush();
+    }
+
+    // A null field list writes every property
+    static void writeItem(Node item, String[] fields, JsonGenerator jg) throws IOException {
+        jg.writeStartObject();
+        if (fields == null) {
+            for (String prop : item.getPropertyKeys()) {
+                jg.writeObjectField(prop, item.getProperty(prop));
+            }
+        } else {
+            for (String field : fields) {
+                if (NODE_ID.equals(field)) {
+                    jg.writeNumberField(NODE_ID, item.getId());
+                } else {
+                    Object value = item.getProperty(field, null);
+                    if (value != null) {
+                        jg.writeObjectField(field, value);
+                    }
+                }
+            }
+        }
+        jg.writeEndObject();
+    }
+
+    static String[] parseFields(String fields) {
+        if (fields == null || fields.trim().isEmpty()) {
+            return null;
+        }
+        String[] parsed = fields.split(",");
+        for (int i = 0; i < parsed.length; i++) {
+            parsed[i] = parsed[i].trim();
+        }
+        return parsed;
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
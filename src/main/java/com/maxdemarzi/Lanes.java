@@ -0,0 +1,129 @@
+package com.maxdemarzi;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs recommendations on bounded pools, one for ordinary users and one for heavy ones, so a burst of heavy users
+// can only take the heavy lane's threads and cheap requests keep flowing. A lane with a full queue rejects at once
+// instead of letting latency build up.
+public class Lanes {
+
+    public enum Lane {
+        LIGHT("light"),
+        HEAVY("heavy");
+
+        final String label;
+
+        Lane(String label) {
+            this.label = label;
+        }
+    }
+
+    private final ThreadPoolExecutor[] pools = new ThreadPoolExecutor[Lane.values().length];
+    private final int[] capacities = new int[Lane.values().length];
+    private final AtomicLong[] rejected = new AtomicLong[Lane.values().length];
+    private final AtomicLong[] timedOut = new AtomicLong[Lane.values().length];
+
+    public Lanes(int lightThreads, int lightQueue, int heavyThreads, int heavyQueue) {
+        pools[Lane.LIGHT.ordinal()] = pool(Lane.LIGHT, lightThreads, lightQueue);
+        pools[Lane.HEAVY.ordinal()] = pool(Lane.HEAVY, heavyThreads, heavyQueue);
+        capacities[Lane.LIGHT.ordinal()] = lightQueue;
+        capacities[Lane.HEAVY.ordinal()] = heavyQueue;
+        for (Lane lane : Lane.values()) {
+            rejected[lane.ordinal()] = new AtomicLong();
+            timedOut[lane.ordinal()] = new AtomicLong();
+        }
+    }
+
+    private static ThreadPoolExecutor pool(final Lane lane, int threads, int queue) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queue),
+                new ThreadFactory() {
+                    private int count;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "lane-" + lane.label + "-" + count++);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    // Null when the lane is full
+    public <T> Future<T> submit(Lane lane, Callable<T> work) {
+        try {
+            return pools[lane.ordinal()].submit(work);
+        } catch (RejectedExecutionException e) {
+            rejected[lane.ordinal()].incrementAndGet();
+            return null;
+        }
+    }
+
+    // Null when it didn't finish in time, in which case it is cancelled
+    public <T> T await(Lane lane, Future<T> future, long timeoutMs) throws IOException, InterruptedException {
+        try {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Not interrupted, that could close store channels under a running transaction. Queued work won't start.
+            future.cancel(false);
+            timedOut[lane.ordinal()].incrementAndGet();
+            return null;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Lane lane : Lane.values()) {
+            ThreadPoolExecutor pool = pools[lane.ordinal()];
+            Map<String, Object> lanes = new LinkedHashMap<>();
+            lanes.put("threads", pool.getMaximumPoolSize());
+            lanes.put("active", pool.getActiveCount());
+            lanes.put("queued", pool.getQueue().size());
+            lanes.put("capacity", capacities[lane.ordinal()]);
+            lanes.put("completed", pool.getCompletedTaskCount());
+            lanes.put("rejected", rejected[lane.ordinal()].get());
+            lanes.put("timedOut", timedOut[lane.ordinal()].get());
+            stats.put(lane.label, lanes);
+        }
+        return stats;
+    }
+
+    // Prometheus text format, alongside the recommend2 metrics
+    public void write(Writer writer) throws IOException {
+        writer.write("# TYPE lane_queue_depth gauge\n");
+        for (Lane lane : Lane.values()) {
+            writer.write("lane_queue_depth{lane=\"" + lane.label + "\"} " + pools[lane.ordinal()].getQueue().size() + "\n");
+        }
+        writer.write("# TYPE lane_active_threads gauge\n");
+        for (Lane lane : Lane.values()) {
+            writer.write("lane_active_threads{lane=\"" + lane.label + "\"} " + pools[lane.ordinal()].getActiveCount() + "\n");
+        }
+        writer.write("# TYPE lane_rejected_total counter\n");
+        for (Lane lane : Lane.values()) {
+            writer.write("lane_rejected_total{lane=\"" + lane.label + "\"} " + rejected[lane.ordinal()].get() + "\n");
+        }
+        writer.write("# TYPE lane_timed_out_total counter\n");
+        for (Lane lane : Lane.values()) {
+            writer.write("lane_timed_out_total{lane=\"" + lane.label + "\"} " + timedOut[lane.ordinal()].get() + "\n");
+        }
+    }
+
+    void stop() {
+        for (ThreadPoolExecutor pool : pools) {
+            pool.shutdownNow();
+        }
+    }
+}
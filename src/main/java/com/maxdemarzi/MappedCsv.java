@@ -0,0 +1,94 @@
+package com.maxdemarzi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Reads a CSV file through memory mapped segments, so the bytes are never copied into a stream buffer first.
+// Fields are split on commas and there is no quoting, which is all the bulk loader files need.
+class MappedCsv {
+
+    // Rows can't span more than this
+    private static final long SEGMENT = 256L * 1024 * 1024;
+
+    interface Handler {
+        // Row 0 is the header. Only the first count fields are the row's.
+        void row(long index, String[] fields, int count);
+    }
+
+    static long read(File file, Handler handler) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            Rows rows = new Rows(handler);
+            long size = channel.size();
+            long position = 0;
+            while (position < size) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(SEGMENT, size - position));
+                int limit = buffer.limit();
+                int start = 0;
+                for (int i = 0; i < limit; i++) {
+                    if (buffer.get(i) == '\n') {
+                        rows.add(buffer, start, i);
+                        start = i + 1;
+                    }
+                }
+                if (position + limit == size) {
+                    // No newline after the last row
+                    if (start < limit) {
+                        rows.add(buffer, start, limit);
+                    }
+                    break;
+                }
+                if (start == 0) {
+                    throw new IOException("Row longer than " + SEGMENT + " bytes in " + file);
+                }
+                // The partial row at the end is read again from the next segment
+                position += start;
+            }
+            return rows.index;
+        }
+    }
+
+    private static class Rows {
+        private final Handler handler;
+        private byte[] line = new byte[256];
+        private String[] fields = new String[8];
+        private long index;
+
+        Rows(Handler handler) {
+            this.handler = handler;
+        }
+
+        void add(MappedByteBuffer buffer, int from, int to) {
+            if (to > from && buffer.get(to - 1) == '\r') {
+                to--;
+            }
+            int length = to - from;
+            if (length == 0) {
+                return;
+            }
+            if (line.length < length) {
+                line = new byte[Math.max(length, line.length * 2)];
+            }
+            for (int i = 0; i < length; i++) {
+                line[i] = buffer.get(from + i);
+            }
+            int count = 0;
+            int start = 0;
+            for (int i = 0; i <= length; i++) {
+                if (i == length || line[i] == ',') {
+                    if (count == fields.length) {
+                        fields = Arrays.copyOf(fields, count * 2);
+                    }
+                    fields[count++] = new String(line, start, i - start, StandardCharsets.UTF_8);
+                    start = i + 1;
+                }
+            }
+            handler.row(index++, fields, count);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.maxdemarzi;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Per phase latency histograms and counters for one endpoint.
+// Every thread records into its own Recorder without locks or contended writes, readers merge them all.
+public class Metrics {
+
+    public enum Phase {
+        LOOKUP("username_lookup"),
+        OWN_EDGES("own_edges"),
+        DISLIKES("dislikes_bitmap"),
+        SIMILAR_USERS("similar_users"),
+        ITEMS("item_expansion"),
+        EXCLUSION("exclusion"),
+        TOP_K("top_k"),
+        SERIALIZATION("serialization");
+
+        final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    public enum Counter {
+        REQUESTS("requests"),
+        RELATIONSHIPS("relationships_traversed"),
+        CANDIDATES("candidates_scored"),
+        BYTES("bytes_emitted");
+
+        final String label;
+
+        Counter(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // Log linear buckets: values under 16ns get their own bucket, past that every power of two is split in 8,
+    // so a bucket is never more than 12.5% wide. Anything past 2^40ns (about 18 minutes) lands in the last one.
+    private static final int SUB_BUCKETS = 8;
+    private static final int MAX_EXPONENT = 40;
+    static final int BUCKETS = 16 + (MAX_EXPONENT - 4 + 1) * SUB_BUCKETS;
+
+    private static final int PHASES = Phase.values().length;
+    private static final int SUMS = PHASES * BUCKETS;
+    private static final int COUNTERS = SUMS + PHASES;
+    private static final int SLOTS = COUNTERS + Counter.values().length;
+
+    private final String name;
+    private final CopyOnWriteArrayList<Recorder> recorders = new CopyOnWriteArrayList<>();
+    private final ThreadLocal<Recorder> local = new ThreadLocal<Recorder>() {
+        @Override
+        protected Recorder initialValue() {
+            Recorder recorder = new Recorder();
+            recorders.add(recorder);
+            return recorder;
+        }
+    };
+
+    public Metrics(String name) {
+        this.name = name;
+    }
+
+    public Recorder recorder() {
+        return local.get();
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < 16) {
+            return nanos < 0 ? 0 : (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int sub = (int) (nanos >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+        return 16 + (exponent - 4) * SUB_BUCKETS + sub;
+    }
+
+    // Middle of the bucket
+    static long value(int bucket) {
+        if (bucket < 16) {
+            return bucket;
+        }
+        int exponent = 4 + (bucket - 16) / SUB_BUCKETS;
+        int sub = (bucket - 16) % SUB_BUCKETS;
+        long width = 1L << (exponent - 3);
+        return (SUB_BUCKETS + sub) * width + width / 2;
+    }
+
+    // Only the owning thread writes, so a plain read and an ordered write are enough
+    public static class Recorder {
+        private final AtomicLongArray slots = new AtomicLongArray(SLOTS);
+
+        private void add(int slot, long delta) {
+            slots.lazySet(slot, slots.get(slot) + delta);
+        }
+
+        // Records the time since start against the phase and returns now, to start the next phase from
+        public long time(Phase phase, long start) {
+            long now = System.nanoTime();
+            add(phase.ordinal() * BUCKETS + bucket(now - start), 1);
+            add(SUMS + phase.ordinal(), now - start);
+            return now;
+        }
+
+        public void count(Counter counter, long delta) {
+            add(COUNTERS + counter.ordinal(), delta);
+        }
+    }
+
+    private long[] merge() {
+        long[] merged = new long[SLOTS];
+        for (Recorder recorder : recorders) {
+            for (int i = 0; i < SLOTS; i++) {
+                merged[i] += recorder.slots.get(i);
+            }
+        }
+        return merged;
+    }
+
+    long count(Counter counter) {
+        return merge()[COUNTERS + counter.ordinal()];
+    }
+
+    long quantile(Phase phase, double quantile) {
+        long[] merged = merge();
+        return quantile(merged, phase.ordinal() * BUCKETS, total(merged, phase.ordinal() * BUCKETS), quantile);
+    }
+
+    private static long total(long[] merged, int from) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += merged[from + i];
+        }
+        return total;
+    }
+
+    private static long quantile(long[] merged, int from, long total, double quantile) {
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += merged[from + i];
+            if (seen >= rank && seen > 0) {
+                return value(i);
+            }
+        }
+        return 0;
+    }
+
+    // Prometheus text exposition format
+    public void write(Writer writer) throws IOException {
+        long[] merged = merge();
+        String phases = name + "_phase_seconds";
+        writer.write("# TYPE " + phases + " summary\n");
+        for (Phase phase : Phase.values()) {
+            int from = phase.ordinal() * BUCKETS;
+            long total = total(merged, from);
+            for (double quantile : QUANTILES) {
+                writer.write(String.format(Locale.ROOT, "%s{phase=\"%s\",quantile=\"%s\"} %.9f\n", phases, phase.label,
+                        quantile, quantile(merged, from, total, quantile) / 1e9));
+            }
+            writer.write(String.format(Locale.ROOT, "%s_sum{phase=\"%s\"} %.9f\n", phases, phase.label,
+                    merged[SUMS + phase.ordinal()] / 1e9));
+            writer.write(String.format(Locale.ROOT, "%s_count{phase=\"%s\"} %d\n", phases, phase.label, total));
+        }
+        for (Counter counter : Counter.values()) {
+            String counterName = name + "_" + counter.label + "_total";
+            writer.write("# TYPE " + counterName + " counter\n");
+            writer.write(counterName + " " + merged[COUNTERS + counter.ordinal()] + "\n");
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.maxdemarzi;
+
+import net.openhft.koloboke.collect.LongCursor;
+import net.openhft.koloboke.collect.map.LongIntCursor;
+import net.openhft.koloboke.collect.map.LongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
+import net.openhft.koloboke.collect.set.LongSet;
+import org.neo4j.graphdb.*;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Splits the similar user expansion of heavy users across a bounded fork join pool.
+// Each leaf scores its slice of items into its own map in its own read transaction, the maps are merged on join.
+public class ParallelScorer {
+
+    private final ForkJoinPool pool;
+    private final int threads;
+    private final int threshold;
+
+    public ParallelScorer(int threads, int threshold) {
+        this.pool = new ForkJoinPool(threads);
+        this.threads = threads;
+        this.threshold = threshold;
+    }
+
+    // Light users stay on the cheaper sequential path
+    public boolean isHeavy(Node user) {
+        return user.getDegree(RelationshipTypes.PURCHASED, Direction.OUTGOING)
+                + user.getDegree(RelationshipTypes.LIKES, Direction.OUTGOING) >= threshold;
+    }
+
+    public void scoreOtherUsers(GraphDatabaseService db, Node user, LongSet likedItems, LongSet purchasedItems, LongIntMap otherUsers, Budget budget) {
+        Service.collectItems(user, likedItems, purchasedItems);
+        // Purchased items first, then liked ones
+        long[] items = new long[purchasedItems.size() + likedItems.size()];
+        int count = 0;
+        LongCursor cursor = purchasedItems.cursor();
+        while (cursor.moveNext()) {
+            items[count++] = cursor.elem();
+        }
+        cursor = likedItems.cursor();
+        while (cursor.moveNext()) {
+            items[count++] = cursor.elem();
+        }
+
+        int grain = Math.max(4, items.length / (threads * 4));
+        merge(pool.invoke(new Expand(db, items, purchasedItems.size(), 0, items.length, grain, budget)), otherUsers);
+        // Remove self from similar users
+        otherUsers.remove(user.getId());
+    }
+
+    private static void merge(LongIntMap from, LongIntMap into) {
+        LongIntCursor cursor = from.cursor();
+        while (cursor.moveNext()) {
+            into.addValue(cursor.key(), cursor.value());
+        }
+    }
+
+    private static class Expand extends RecursiveTask<HashLongIntMap> {
+        private final GraphDatabaseService db;
+        private final long[] items;
+        private final int purchased;
+        private final int from;
+        private final int to;
+        private final int grain;
+        private final Budget budget;
+
+        Expand(GraphDatabaseService db, long[] items, int purchased, int from, int to, int grain, Budget budget) {
+            this.db = db;
+            this.items = items;
+            this.purchased = purchased;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+            this.budget = budget;
+        }
+
+        @Override
+        protected HashLongIntMap compute() {
+            if (to - from > grain) {
+                int middle = (from + to) >>> 1;
+                Expand left = new Expand(db, items, purchased, from, middle, grain, budget);
+                left.fork();
+                HashLongIntMap right = new Expand(db, items, purchased, middle, to, grain, budget).compute();
+                HashLongIntMap joined = left.join();
+                // Merge the smaller map into the larger one
+                if (joined.size() < right.size()) {
+                    merge(joined, right);
+                    return right;
+                }
+                merge(right, joined);
+                return joined;
+            }
+
+            HashLongIntMap otherUsers = HashLongIntMaps.newMutableMap();
+            try (Transaction tx = db.beginTx()) {
+                for (int i = from; i < to; i++) {
+                    Node item = db.getNodeById(items[i]);
+                    if (i < purchased) {
+                        Service.addToAll(item, RelationshipTypes.PURCHASED, 5, otherUsers, budget);
+                        Service.addToAll(item, RelationshipTypes.LIKES, 3, otherUsers, budget);
+                    } else {
+                        Service.addToAll(item, RelationshipTypes.LIKES, 2, otherUsers, budget);
+                        Service.addToAll(item, RelationshipTypes.PURCHASED, 1, otherUsers, budget);
+                    }
+                }
+                tx.success();
+            }
+            return otherUsers;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.*;
+
+import java.io.File;
+
+// Computes the top items of every user ahead of time and stores them on the user node, best first.
+// Each chunk of users is scored in a read transaction and stored in a write transaction.
+public class PrecomputeJob extends UserJob {
+
+    static final String PROPERTY = "recommendations";
+
+    private final ServiceState state;
+    private final int size;
+    // Sized for the job, the scratch one is shrunk back on every Scratch.get()
+    private final ThreadLocal<TopK> topK = new ThreadLocal<TopK>() {
+        @Override
+        protected TopK initialValue() {
+            return new TopK(size);
+        }
+    };
+
+    public PrecomputeJob(GraphDatabaseService db, File checkpoint, int threads, int chunkSize, int size) {
+        super(db, checkpoint, threads, chunkSize);
+        this.state = ServiceState.forDatabase(db);
+        this.size = size;
+    }
+
+    @Override
+    protected void process(long[] users, int from, int to) {
+        long[][] recommendations = new long[to - from][];
+
+        try (Transaction tx = db.beginTx()) {
+            for (int i = from; i < to; i++) {
+                try {
+                    recommendations[i - from] = recommend(db.getNodeById(users[i]));
+                } catch (NotFoundException e) {
+                    // Deleted since the ids were read
+                }
+            }
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            for (int i = from; i < to; i++) {
+                if (recommendations[i - from] != null) {
+                    try {
+                        db.getNodeById(users[i]).setProperty(PROPERTY, recommendations[i - from]);
+                    } catch (NotFoundException e) {
+                        // Deleted since it was scored
+                    }
+                }
+            }
+            tx.success();
+        }
+    }
+
+    // Same scoring as recommend3, leaving out dislikes. Those are filtered when the list is read,
+    // so disliking an item doesn't make the stored list stale.
+    private long[] recommend(Node user) {
+        Scratch scratch = Scratch.get();
+        Budget budget = scratch.budget;
+        budget.reset(state.maxRelationships, state.maxDegree);
+        Service.scoreOtherUsers(user, scratch.likedItems, scratch.purchasedItems, scratch.otherUsers, budget);
+        long[] similarUsers = Service.findTopK(scratch.topK, scratch.otherUsers, Service.SIMILAR_USERS, 0);
+
+        scratch.exclusions.addAll(scratch.purchasedItems);
+        scratch.exclusions.addAll(scratch.likedItems);
+        Service.scoreOtherItems(db, similarUsers, scratch.exclusions, scratch.otherItems, budget);
+        return Service.findTopK(topK.get(), scratch.otherItems, size, 0);
+    }
+}
@@ -0,0 +1,290 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Ranked items per user for a few seconds, so repeated requests from the same user skip the traversal.
+// Identical requests arriving while one is being computed wait for it instead of computing their own.
+// A user's entry is dropped when their LIKES, PURCHASED or dislikes change.
+public class ResultCache implements TransactionEventHandler<List<Long>> {
+
+    private static final int SEGMENTS = 16;
+    // Rough cost of the map entry, boxed key and entry on top of the item ids
+    private static final int ENTRY_OVERHEAD = 160;
+
+    // Computes the best size items for a user, in a transaction of its own. Null for a user that no longer exists.
+    public interface Loader {
+        long[] load(int size);
+    }
+
+    private final long ttlMs;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final ConcurrentHashMap<Long, Flight> flights = new ConcurrentHashMap<>();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ResultCache(long maxBytes, long ttlMs) {
+        this.ttlMs = ttlMs;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+    }
+
+    // At least size items when the user has that many, best first. Null for a user that no longer exists.
+    public long[] get(Long userId, int size, Loader loader) {
+        if (ttlMs <= 0) {
+            return loader.load(size);
+        }
+        Entry entry = cached(userId, size);
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry.items;
+        }
+
+        Flight flight = new Flight(userId, size, loader);
+        Flight running = flights.putIfAbsent(userId, flight);
+        if (running != null && running.size >= size) {
+            coalesced.incrementAndGet();
+            return running.await();
+        }
+        if (running != null) {
+            // Asked for more than is being computed, so compute it alone
+            flight = new Flight(userId, size, loader);
+        }
+        try {
+            flight.run();
+        } finally {
+            flights.remove(userId, flight);
+        }
+        if (flight.loaded) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return flight.await();
+    }
+
+    private Entry cached(Long userId, int size) {
+        Segment segment = segments[(int) (userId & (SEGMENTS - 1))];
+        long now = System.currentTimeMillis();
+        synchronized (segment) {
+            Entry entry = segment.get(userId);
+            if (entry != null) {
+                if (entry.expiresAt <= now) {
+                    segment.discard(userId);
+                    expired.incrementAndGet();
+                } else if (entry.items.length >= size || entry.complete) {
+                    return entry;
+                }
+            }
+        }
+        return null;
+    }
+
+    public void invalidate(long userId) {
+        Segment segment = segments[(int) (userId & (SEGMENTS - 1))];
+        synchronized (segment) {
+            segment.invalidations++;
+            invalidations.incrementAndGet();
+            segment.discard(userId);
+        }
+    }
+
+    public Map<String, Object> stats() {
+        long entries = 0;
+        long bytes = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                entries += segment.size();
+                bytes += segment.bytes;
+            }
+        }
+        long lookups = hits.get() + misses.get() + coalesced.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("coalesced", coalesced.get());
+        stats.put("hitRate", lookups == 0 ? 0.0 : (double) (hits.get() + coalesced.get()) / lookups);
+        stats.put("expired", expired.get());
+        stats.put("evictions", evictions.get());
+        stats.put("invalidations", invalidations.get());
+        stats.put("entries", entries);
+        stats.put("bytes", bytes);
+        stats.put("inFlight", flights.size());
+        return stats;
+    }
+
+    // Entities can no longer be read after commit, so collect the affected users up front
+    @Override
+    public List<Long> beforeCommit(TransactionData data) throws Exception {
+        List<Long> changed = new ArrayList<>();
+        for (ItemChange change : ItemChange.collect(data)) {
+            changed.add(change.userId);
+        }
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            if (DislikesCache.PROPERTY.equals(entry.key())) {
+                changed.add(entry.entity().getId());
+            }
+        }
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            if (DislikesCache.PROPERTY.equals(entry.key())) {
+                changed.add(entry.entity().getId());
+            }
+        }
+        for (Node node : data.deletedNodes()) {
+            changed.add(node.getId());
+        }
+        return changed;
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, List<Long> changed) {
+        for (Long userId : changed) {
+            invalidate(userId);
+        }
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, List<Long> changed) {
+    }
+
+    // One computation other requests for the same user can wait on
+    private class Flight implements Callable<Entry> {
+        final Long userId;
+        final int size;
+        final Loader loader;
+        final FutureTask<Entry> task = new FutureTask<>(this);
+        // False when another flight stored what was needed between the first look and this one starting
+        volatile boolean loaded;
+
+        Flight(Long userId, int size, Loader loader) {
+            this.userId = userId;
+            this.size = size;
+            this.loader = loader;
+        }
+
+        @Override
+        public Entry call() {
+            Entry cached = cached(userId, size);
+            if (cached != null) {
+                return cached;
+            }
+            loaded = true;
+            // Only cache what we computed if nobody in the user's segment was invalidated in the meantime
+            long stamp = stamp(userId);
+            long[] items = loader.load(size);
+            if (items == null) {
+                return null;
+            }
+            Entry entry = new Entry(items, size, System.currentTimeMillis() + ttlMs);
+            store(userId, entry, stamp);
+            return entry;
+        }
+
+        void run() {
+            task.run();
+        }
+
+        long[] await() {
+            boolean interrupted = false;
+            try {
+                while (true) {
+                    try {
+                        Entry entry = task.get();
+                        return entry == null ? null : entry.items;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof RuntimeException) {
+                            throw (RuntimeException) cause;
+                        }
+                        throw new IllegalStateException(cause);
+                    }
+                }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private long stamp(Long userId) {
+        Segment segment = segments[(int) (userId & (SEGMENTS - 1))];
+        synchronized (segment) {
+            return segment.invalidations;
+        }
+    }
+
+    private void store(Long userId, Entry entry, long stamp) {
+        Segment segment = segments[(int) (userId & (SEGMENTS - 1))];
+        synchronized (segment) {
+            if (segment.invalidations == stamp) {
+                segment.add(userId, entry);
+            }
+        }
+    }
+
+    private static class Entry {
+        final long[] items;
+        // Fewer items than asked for means the user has no more
+        final boolean complete;
+        final long expiresAt;
+        final int weight;
+
+        Entry(long[] items, int size, long expiresAt) {
+            this.items = items;
+            this.complete = items.length < size;
+            this.expiresAt = expiresAt;
+            this.weight = items.length * 8 + ENTRY_OVERHEAD;
+        }
+    }
+
+    // Access ordered, so iteration starts at the least recently used entry
+    private class Segment extends LinkedHashMap<Long, Entry> {
+        private final long maxBytes;
+        private long bytes;
+        private long invalidations;
+
+        Segment(long maxBytes) {
+            super(16, 0.75f, true);
+            this.maxBytes = maxBytes;
+        }
+
+        void add(Long userId, Entry entry) {
+            Entry previous = put(userId, entry);
+            if (previous != null) {
+                bytes -= previous.weight;
+            }
+            bytes += entry.weight;
+            Iterator<Entry> eldest = values().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= eldest.next().weight;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        void discard(Long userId) {
+            Entry previous = remove(userId);
+            if (previous != null) {
+                bytes -= previous.weight;
+            }
+        }
+    }
+}
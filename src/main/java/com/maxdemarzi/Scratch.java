@@ -0,0 +1,38 @@
+package com.maxdemarzi;
+
+import net.openhft.koloboke.collect.map.hash.HashLongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
+import net.openhft.koloboke.collect.set.hash.HashLongSet;
+import net.openhft.koloboke.collect.set.hash.HashLongSets;
+
+public class Scratch {
+
+    private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private static final int TOP_K = 32;
+
+    final HashLongSet likedItems = HashLongSets.newMutableSet();
+    final HashLongSet purchasedItems = HashLongSets.newMutableSet();
+    final HashLongIntMap otherUsers = HashLongIntMaps.newMutableMap();
+    final HashLongIntMap otherItems = HashLongIntMaps.newMutableMap();
+    final TopK topK = new TopK(TOP_K);
+    final Exclusions exclusions = new Exclusions();
+    final Budget budget = new Budget();
+
+    // Clearing keeps the table capacity, so steady state requests on a thread allocate nothing here
+    static Scratch get() {
+        Scratch scratch = SCRATCH.get();
+        scratch.likedItems.clear();
+        scratch.purchasedItems.clear();
+        scratch.otherUsers.clear();
+        scratch.otherItems.clear();
+        scratch.exclusions.clear();
+        scratch.topK.shrink(TOP_K);
+        return scratch;
+    }
+}
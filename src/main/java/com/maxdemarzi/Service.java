@@ -1,27 +1,53 @@
 package com.maxdemarzi;
 
+import net.openhft.koloboke.collect.map.LongIntCursor;
+import net.openhft.koloboke.collect.map.LongIntMap;
+import net.openhft.koloboke.collect.set.LongSet;
 import org.apache.commons.lang.mutable.MutableInt;
+import org.codehaus.jackson.JsonNode;
+import org.codehaus.jackson.JsonProcessingException;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.schema.Schema;
-import org.roaringbitmap.RoaringBitmap;
 
+import javax.ws.rs.Consumes;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.GET;
+import javax.ws.rs.POST;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.WebApplicationException;
 import javax.ws.rs.core.Context;
+import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 @Path("/v1")
 public class Service {
 
     private static final ObjectMapper objectMapper = new ObjectMapper();
-    private static final ReverseMapComparator REVERSE_MAP_COMPARATOR = new ReverseMapComparator();
+    static final int SIMILAR_USERS = 25;
+    private static final long[] NO_ITEMS = new long[0];
+    private static final long NO_ID = -1;
+    static final int MAX_RESULTS = Integer.getInteger("results.max", 1000);
+    static final int MAX_JOB_THREADS = Integer.getInteger("jobs.threads.max", 64);
+    // Keeps the deadline in nanoseconds from overflowing
+    static final long MAX_TIMEOUT_MS = Long.getLong("timeout.max.ms", 600000);
+    static final String TRUNCATED = "X-Truncated";
+    static final String RELATIONSHIPS_TOUCHED = "X-Relationships-Touched";
+    static final String COMPLETED = "X-Completed";
+    static final String RETRY_AFTER = "Retry-After";
+    private static final long DISLIKES_WRITE_TIMEOUT_MS = 10000;
 
     @GET
     @Path("/migrate")
@@ -44,131 +70,592 @@ public class Service {
 
     @GET
     @Path("/recommend/{username}")
-    public Response Recommend(@PathParam("username") String username, @Context GraphDatabaseService db) throws IOException {
-        List<Map<String, Object>> results = new ArrayList<>();
+    public Response Recommend(@PathParam("username") String username,
+                              @QueryParam("k") @DefaultValue("10") int k,
+                              @QueryParam("offset") @DefaultValue("0") int offset,
+                              @QueryParam("precomputed") @DefaultValue("false") boolean precomputed,
+                              @QueryParam("fields") String fields,
+                              @Context GraphDatabaseService db) throws IOException {
+        return recommend(username, NO_ID, k, offset, precomputed, fields, db);
+    }
+
+    @GET
+    @Path("/recommend/id/{id}")
+    public Response RecommendById(@PathParam("id") long id,
+                                  @QueryParam("k") @DefaultValue("10") int k,
+                                  @QueryParam("offset") @DefaultValue("0") int offset,
+                                  @QueryParam("precomputed") @DefaultValue("false") boolean precomputed,
+                                  @QueryParam("fields") String fields,
+                                  @Context GraphDatabaseService db) throws IOException {
+        return recommend(null, id, k, offset, precomputed, fields, db);
+    }
+
+    private static Response recommend(String username, long userId, int k, int offset, boolean precomputed, String fields,
+                                      GraphDatabaseService db) {
+        if (badPage(k, offset)) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        long[] topItems = NO_ITEMS;
 
         Set<Node> likedItems = new HashSet<>();
-        Set<Node> dislikedItems = new HashSet<>();
         Set<Node> purchasedItems = new HashSet<>();
+        Exclusions exclusions = new Exclusions();
 
         try (Transaction tx = db.beginTx()) {
-            final Node user = db.findNode(Labels.User, "username", username);
+            final Node user = findUser(db, username, userId);
 
             if ( user != null) {
-                for (Relationship rel : user.getRelationships(RelationshipTypes.LIKES, Direction.OUTGOING)) {
-                    likedItems.add(rel.getEndNode());
-                }
-
-                for (Relationship rel : user.getRelationships(RelationshipTypes.PURCHASED, Direction.OUTGOING)) {
-                    purchasedItems.add(rel.getEndNode());
-                }
-
-                for (Relationship rel : user.getRelationships(RelationshipTypes.DISLIKES, Direction.OUTGOING)) {
-                    dislikedItems.add(rel.getEndNode());
-                }
+                long[] stored = precomputed ? (long[]) user.getProperty(PrecomputeJob.PROPERTY, null) : null;
+                if (stored != null) {
+                    // Stored lists leave dislikes in, they are filtered here against the current ones
+                    exclusions.setDislikes(ServiceState.forDatabase(db).dislikes.get(user));
+                    topItems = page(stored, exclusions, k, offset);
+                } else {
+                    for (Relationship rel : user.getRelationships(RelationshipTypes.LIKES, Direction.OUTGOING)) {
+                        Node item = rel.getEndNode();
+                        likedItems.add(item);
+                        exclusions.add(item.getId());
+                    }
 
-                // Get up to 25 Similar Users
-                HashMap<Node, MutableInt> otherUsers = getOtherUsers(likedItems, purchasedItems, user);
-                ArrayList<Node> similarUsers = findTopK(otherUsers.entrySet(), 25);
+                    for (Relationship rel : user.getRelationships(RelationshipTypes.PURCHASED, Direction.OUTGOING)) {
+                        Node item = rel.getEndNode();
+                        purchasedItems.add(item);
+                        exclusions.add(item.getId());
+                    }
 
-                HashMap<Node, MutableInt> otherItems = getOtherItems(similarUsers);
+                    // Relationships not migrated yet, and the bitmap for anything migrated or written by /dislikes
+                    for (Relationship rel : user.getRelationships(RelationshipTypes.DISLIKES, Direction.OUTGOING)) {
+                        exclusions.add(rel.getEndNode().getId());
+                    }
+                    exclusions.setDislikes(ServiceState.forDatabase(db).dislikes.get(user));
 
-                // Remove items I've already purchased, liked, or disliked
-                for (Node item : purchasedItems) {
-                    otherItems.remove(item);
-                }
-                for (Node item : likedItems) {
-                    otherItems.remove(item);
-                }
-                for (Node item : dislikedItems) {
-                    otherItems.remove(item);
-                }
+                    // Get up to 25 Similar Users
+                    HashMap<Node, MutableInt> otherUsers = getOtherUsers(likedItems, purchasedItems, user, null);
+                    long[] similarUsers = findTopK(otherUsers, SIMILAR_USERS, 0);
 
-                ArrayList<Node> topItems = findTopK(otherItems.entrySet(), 10);
+                    // Skip items I've already purchased, liked, or disliked
+                    HashMap<Node, MutableInt> otherItems = getOtherItems(db, similarUsers, exclusions, null);
 
-                for (Node item : topItems) {
-                    Map<String, Object> resultsEntry = new HashMap<>();
-                    for (String prop : item.getPropertyKeys()) {
-                        resultsEntry.put(prop, item.getProperty(prop));
-                    }
-                    results.add(resultsEntry);
+                    topItems = findTopK(otherItems, k, offset);
                 }
             }
         }
-        return Response.ok().entity(objectMapper.writeValueAsString(results)).build();
+        return Response.ok().entity(new ItemsOutput(db, topItems, ItemsOutput.parseFields(fields)))
+                .type(MediaType.APPLICATION_JSON).build();
     }
 
     @GET
     @Path("/recommend2/{username}")
-    public Response Recommend2(@PathParam("username") String username, @Context GraphDatabaseService db) throws IOException {
-        List<Map<String, Object>> results = new ArrayList<>();
+    public Response Recommend2(@PathParam("username") String username,
+                               @QueryParam("k") @DefaultValue("10") int k,
+                               @QueryParam("offset") @DefaultValue("0") int offset,
+                               @QueryParam("fields") String fields,
+                               @Context GraphDatabaseService db) throws IOException {
+        return recommend2(username, NO_ID, k, offset, fields, db);
+    }
+
+    @GET
+    @Path("/recommend2/id/{id}")
+    public Response Recommend2ById(@PathParam("id") long id,
+                                   @QueryParam("k") @DefaultValue("10") int k,
+                                   @QueryParam("offset") @DefaultValue("0") int offset,
+                                   @QueryParam("fields") String fields,
+                                   @Context GraphDatabaseService db) throws IOException {
+        return recommend2(null, id, k, offset, fields, db);
+    }
 
+    private static Response recommend2(String username, long userId, int k, int offset, String fields,
+                                       final GraphDatabaseService db) {
+        if (badPage(k, offset)) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        ServiceState state = ServiceState.forDatabase(db);
+        Metrics metrics = state.metrics;
+        final Metrics.Recorder recorder = metrics.recorder();
+        recorder.count(Metrics.Counter.REQUESTS, 1);
+
+        long[] ranked = null;
+        long time = System.nanoTime();
+        Node user;
+        try (Transaction tx = db.beginTx()) {
+            user = findUser(db, username, userId);
+        }
+        recorder.time(Metrics.Phase.LOOKUP, time);
+        if (user != null) {
+            final long id = user.getId();
+            // Repeated requests for the same user within the ttl are answered from the ranked list of the first
+            ranked = state.results.get(id, k + offset, new ResultCache.Loader() {
+                @Override
+                public long[] load(int size) {
+                    return rank2(db, id, size, recorder);
+                }
+            });
+        }
+        long[] topItems = NO_ITEMS;
+        if (ranked != null && offset < ranked.length) {
+            topItems = Arrays.copyOfRange(ranked, offset, Math.min(ranked.length, offset + k));
+        }
+        return Response.ok().entity(new ItemsOutput(db, topItems, ItemsOutput.parseFields(fields), metrics))
+                .type(MediaType.APPLICATION_JSON).build();
+    }
+
+    // Null if the user was deleted since it was found
+    private static long[] rank2(GraphDatabaseService db, long userId, int size, Metrics.Recorder recorder) {
         Set<Node> likedItems = new HashSet<>();
-        Set<Node> dislikedItems = new HashSet<>();
         Set<Node> purchasedItems = new HashSet<>();
+        Exclusions exclusions = new Exclusions();
 
         try (Transaction tx = db.beginTx()) {
-            final Node user = db.findNode(Labels.User, "username", username);
+            long time = System.nanoTime();
+            Node user;
+            try {
+                user = db.getNodeById(userId);
+            } catch (NotFoundException e) {
+                return null;
+            }
+            for (Relationship rel : user.getRelationships(RelationshipTypes.LIKES, Direction.OUTGOING)) {
+                likedItems.add(rel.getEndNode());
+            }
+
+            for (Relationship rel : user.getRelationships(RelationshipTypes.PURCHASED, Direction.OUTGOING)) {
+                purchasedItems.add(rel.getEndNode());
+            }
+            time = recorder.time(Metrics.Phase.OWN_EDGES, time);
+
+            DislikeBitmap dislikes = ServiceState.forDatabase(db).dislikes.get(user);
+            time = recorder.time(Metrics.Phase.DISLIKES, time);
+
+            for (Node item : likedItems) {
+                exclusions.add(item.getId());
+            }
+            for (Node item : purchasedItems) {
+                exclusions.add(item.getId());
+            }
+            exclusions.setDislikes(dislikes);
+            time = recorder.time(Metrics.Phase.EXCLUSION, time);
+
+            // Get up to 25 Similar Users
+            HashMap<Node, MutableInt> otherUsers = getOtherUsers(likedItems, purchasedItems, user, recorder);
+            long[] similarUsers = findTopK(otherUsers, SIMILAR_USERS, 0);
+            time = recorder.time(Metrics.Phase.SIMILAR_USERS, time);
+
+            // Skip items I've already purchased, liked, or disliked
+            HashMap<Node, MutableInt> otherItems = getOtherItems(db, similarUsers, exclusions, recorder);
+            time = recorder.time(Metrics.Phase.ITEMS, time);
+
+            long[] topItems = findTopK(otherItems, size, 0);
+            recorder.time(Metrics.Phase.TOP_K, time);
+            recorder.count(Metrics.Counter.CANDIDATES, otherUsers.size() + otherItems.size());
+            return topItems;
+        }
+    }
+
+    @GET
+    @Path("/recommend3/{username}")
+    public Response Recommend3(@PathParam("username") String username,
+                               @QueryParam("k") @DefaultValue("10") int k,
+                               @QueryParam("offset") @DefaultValue("0") int offset,
+                               @QueryParam("index") @DefaultValue("false") boolean index,
+                               @QueryParam("precomputed") @DefaultValue("false") boolean precomputed,
+                               @QueryParam("fields") String fields,
+                               @QueryParam("budget") @DefaultValue("0") long budget,
+                               @QueryParam("timeoutMs") @DefaultValue("0") long timeoutMs,
+                               @Context GraphDatabaseService db) throws IOException {
+        return recommend3(username, NO_ID, k, offset, index, precomputed, fields, budget, timeoutMs, db);
+    }
+
+    @GET
+    @Path("/recommend3/id/{id}")
+    public Response Recommend3ById(@PathParam("id") long id,
+                                   @QueryParam("k") @DefaultValue("10") int k,
+                                   @QueryParam("offset") @DefaultValue("0") int offset,
+                                   @QueryParam("index") @DefaultValue("false") boolean index,
+                                   @QueryParam("precomputed") @DefaultValue("false") boolean precomputed,
+                                   @QueryParam("fields") String fields,
+                                   @QueryParam("budget") @DefaultValue("0") long budget,
+                                   @QueryParam("timeoutMs") @DefaultValue("0") long timeoutMs,
+                                   @Context GraphDatabaseService db) throws IOException {
+        return recommend3(null, id, k, offset, index, precomputed, fields, budget, timeoutMs, db);
+    }
+
+    private static Response recommend3(String username, long userId, int k, int offset, boolean index, boolean precomputed,
+                                       String fields, long budget, long timeoutMs, GraphDatabaseService db) {
+        if (badPage(k, offset) || budget < 0 || timeoutMs < 0 || timeoutMs > MAX_TIMEOUT_MS) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        long[] topItems = NO_ITEMS;
+        ServiceState state = ServiceState.forDatabase(db);
+        Budget spent = null;
+
+        try (Transaction tx = db.beginTx()) {
+            final Node user = findUser(db, username, userId);
 
             if ( user != null) {
-                for (Relationship rel : user.getRelationships(RelationshipTypes.LIKES, Direction.OUTGOING)) {
-                    likedItems.add(rel.getEndNode());
+                Scratch scratch = Scratch.get();
+                spent = scratch.budget;
+                spent.reset(budget == 0 ? state.maxRelationships : budget, state.maxDegree, timeoutMs);
+
+                long[] similarUsers = precomputed ? state.similarUsers.read(user) : null;
+                if (similarUsers != null) {
+                    // My own items are still needed for the exclusions, but not their other users
+                    collectItems(user, scratch.likedItems, scratch.purchasedItems);
+                } else {
+                    // Get up to 25 Similar Users, purchases are expanded before likes since they are worth more
+                    if (index && state.itemUsers.isReady()) {
+                        scoreOtherUsers(user, state.itemUsers, scratch.likedItems, scratch.purchasedItems, scratch.otherUsers, spent);
+                    } else if (state.parallel.isHeavy(user)) {
+                        state.parallel.scoreOtherUsers(db, user, scratch.likedItems, scratch.purchasedItems, scratch.otherUsers, spent);
+                    } else {
+                        scoreOtherUsers(user, scratch.likedItems, scratch.purchasedItems, scratch.otherUsers, spent);
+                    }
+                    similarUsers = findTopK(scratch.topK, scratch.otherUsers, SIMILAR_USERS, 0);
+                    if (precomputed) {
+                        state.similarUsers.refresh(user.getId());
+                    }
                 }
 
-                for (Relationship rel : user.getRelationships(RelationshipTypes.PURCHASED, Direction.OUTGOING)) {
-                    purchasedItems.add(rel.getEndNode());
-                }
+                // Skip items I've already purchased, liked, or disliked. Most similar users go first.
+                scratch.exclusions.addAll(scratch.purchasedItems);
+                scratch.exclusions.addAll(scratch.likedItems);
+                scratch.exclusions.setDislikes(state.dislikes.get(user));
+                scoreOtherItems(db, similarUsers, scratch.exclusions, scratch.otherItems, spent);
 
-                RoaringBitmap dislikes = getRoaringBitmap(user, "dislikes");
-                for (int nodeId : dislikes.toArray()) {
-                    dislikedItems.add(db.getNodeById(nodeId));
+                topItems = findTopK(scratch.topK, scratch.otherItems, k, offset);
+            }
+        }
+        Response.ResponseBuilder builder = Response.ok().entity(new ItemsOutput(db, topItems, ItemsOutput.parseFields(fields)))
+                .type(MediaType.APPLICATION_JSON);
+        if (spent != null) {
+            builder.header(TRUNCATED, spent.isTruncated())
+                    .header(RELATIONSHIPS_TOUCHED, spent.touched())
+                    .header(COMPLETED, spent.completed());
+        }
+        return builder.build();
+    }
+
+    // The same as /recommend2, run on a lane picked by the user's degree. 503 with Retry-After when the lane is full.
+    @GET
+    @Path("/async/recommend2/{username}")
+    public Response AsyncRecommend2(@PathParam("username") final String username,
+                                    @QueryParam("k") @DefaultValue("10") final int k,
+                                    @QueryParam("offset") @DefaultValue("0") final int offset,
+                                    @QueryParam("fields") final String fields,
+                                    @Context final GraphDatabaseService db) throws IOException, InterruptedException {
+        return admit(db, username, new Callable<Response>() {
+            @Override
+            public Response call() {
+                return recommend2(username, NO_ID, k, offset, fields, db);
+            }
+        });
+    }
+
+    @GET
+    @Path("/async/recommend3/{username}")
+    public Response AsyncRecommend3(@PathParam("username") final String username,
+                                    @QueryParam("k") @DefaultValue("10") final int k,
+                                    @QueryParam("offset") @DefaultValue("0") final int offset,
+                                    @QueryParam("index") @DefaultValue("false") final boolean index,
+                                    @QueryParam("precomputed") @DefaultValue("false") final boolean precomputed,
+                                    @QueryParam("fields") final String fields,
+                                    @QueryParam("budget") @DefaultValue("0") final long budget,
+                                    @QueryParam("timeoutMs") @DefaultValue("0") final long timeoutMs,
+                                    @Context final GraphDatabaseService db) throws IOException, InterruptedException {
+        final long laneTimeoutMs = ServiceState.forDatabase(db).laneTimeoutMs;
+        final long admitted = System.currentTimeMillis();
+        return admit(db, username, new Callable<Response>() {
+            @Override
+            public Response call() {
+                // Timed-out work is not interrupted, so the traversal's own deadline is what gives the lane back
+                long remaining = laneTimeoutMs - (System.currentTimeMillis() - admitted);
+                if (remaining <= 0) {
+                    return null;
                 }
+                return recommend3(username, NO_ID, k, offset, index, precomputed, fields, budget,
+                        Math.min(timeoutMs == 0 ? remaining : Math.min(timeoutMs, remaining), MAX_TIMEOUT_MS), db);
+            }
+        });
+    }
 
-                // Get up to 25 Similar Users
-                HashMap<Node, MutableInt> otherUsers = getOtherUsers(likedItems, purchasedItems, user);
-                ArrayList<Node> similarUsers = findTopK(otherUsers.entrySet(), 25);
+    // Also keeps k + offset from overflowing
+    private static boolean badPage(int k, int offset) {
+        return k < 1 || offset < 0 || k > MAX_RESULTS - offset;
+    }
 
-                HashMap<Node, MutableInt> otherItems = getOtherItems(similarUsers);
+    // Users heavy enough for the parallel expansion go to the heavy lane, everyone else to the light one
+    private static Response admit(GraphDatabaseService db, String username, Callable<Response> work)
+            throws IOException, InterruptedException {
+        ServiceState state = ServiceState.forDatabase(db);
+        Lanes.Lane lane = Lanes.Lane.LIGHT;
+        try (Transaction tx = db.beginTx()) {
+            Node user = state.userIds.find(db, username);
+            if (user != null && state.parallel.isHeavy(user)) {
+                lane = Lanes.Lane.HEAVY;
+            }
+        }
+        Future<Response> future = state.lanes.submit(lane, work);
+        Response response = future == null ? null : state.lanes.await(lane, future, state.laneTimeoutMs);
+        if (response == null) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).header(RETRY_AFTER, state.retryAfterSeconds).build();
+        }
+        return response;
+    }
 
-                // Remove items I've already purchased, liked, or disliked
-                for (Node item : purchasedItems) {
-                    otherItems.remove(item);
-                }
-                for (Node item : likedItems) {
-                    otherItems.remove(item);
-                }
-                for (Node item : dislikedItems) {
-                    otherItems.remove(item);
-                }
+    @POST
+    @Path("/recommend/batch")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response RecommendBatch(String body,
+                                   @QueryParam("k") @DefaultValue("10") final int k,
+                                   @QueryParam("chunk") @DefaultValue("1000") final int chunk,
+                                   @QueryParam("fields") final String fields,
+                                   @Context final GraphDatabaseService db) throws IOException {
+        if (badPage(k, 0) || chunk < 1) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        final String[] usernames;
+        try {
+            usernames = objectMapper.readValue(body, String[].class);
+        } catch (JsonProcessingException e) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+
+        StreamingOutput stream = new StreamingOutput() {
+            @Override
+            public void write(OutputStream os) throws IOException, WebApplicationException {
+                new BatchRecommender(db).write(usernames, chunk, k, ItemsOutput.parseFields(fields), os);
+            }
+        };
+        return Response.ok().entity(stream).type(MediaType.APPLICATION_JSON).build();
+    }
+
+    // The body is an item id or an array of them, ids can also be passed as item= query parameters
+    @POST
+    @Path("/dislikes/{username}")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response addDislikes(@PathParam("username") String username,
+                                @QueryParam("item") List<Long> items,
+                                String body,
+                                @Context GraphDatabaseService db) throws IOException, InterruptedException {
+        return updateDislikes(username, items, body, true, db);
+    }
+
+    @DELETE
+    @Path("/dislikes/{username}")
+    public Response removeDislikes(@PathParam("username") String username,
+                                   @QueryParam("item") List<Long> items,
+                                   String body,
+                                   @Context GraphDatabaseService db) throws IOException, InterruptedException {
+        return updateDislikes(username, items, body, false, db);
+    }
 
-                ArrayList<Node> topItems = findTopK(otherItems.entrySet(), 10);
+    private static Response updateDislikes(String username, List<Long> items, String body, boolean add, GraphDatabaseService db)
+            throws IOException, InterruptedException {
+        long[] itemIds = parseItemIds(items, body);
+        if (itemIds == null) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        long userId;
+        try (Transaction tx = db.beginTx()) {
+            Node user = ServiceState.forDatabase(db).userIds.find(db, username);
+            if (user == null) {
+                return Response.status(Response.Status.NOT_FOUND).build();
+            }
+            userId = user.getId();
+        }
+        ServiceState state = ServiceState.forDatabase(db);
+        DislikesWriter.Batch batch = state.dislikesWriter.update(userId, itemIds, add);
+        boolean written;
+        try {
+            written = batch.await(userId, DISLIKES_WRITE_TIMEOUT_MS);
+        } catch (RuntimeException e) {
+            // Logged by the writer. Usually a deadlock, worth retrying.
+            written = false;
+        }
+        if (!written) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).header(RETRY_AFTER, state.retryAfterSeconds).build();
+        }
+        return Response.noContent().build();
+    }
 
-                for (Node item : topItems) {
-                    Map<String, Object> resultsEntry = new HashMap<>();
-                    for (String prop : item.getPropertyKeys()) {
-                        resultsEntry.put(prop, item.getProperty(prop));
+    // Null unless every id is a valid node id
+    private static long[] parseItemIds(List<Long> items, String body) throws IOException {
+        List<Long> ids = new ArrayList<>(items);
+        if (body != null && !body.trim().isEmpty()) {
+            JsonNode json;
+            try {
+                json = objectMapper.readTree(body);
+            } catch (JsonProcessingException e) {
+                return null;
+            }
+            if (json.isIntegralNumber()) {
+                ids.add(json.getLongValue());
+            } else if (json.isArray()) {
+                for (JsonNode element : json) {
+                    if (!element.isIntegralNumber()) {
+                        return null;
                     }
-                    results.add(resultsEntry);
+                    ids.add(element.getLongValue());
                 }
+            } else {
+                return null;
+            }
+        }
+        if (ids.isEmpty()) {
+            return null;
+        }
+        long[] itemIds = new long[ids.size()];
+        for (int i = 0; i < itemIds.length; i++) {
+            long id = ids.get(i);
+            if (id < 0) {
+                return null;
+            }
+            itemIds[i] = id;
+        }
+        return itemIds;
+    }
+
+    @GET
+    @Path("/stats")
+    public Response stats(@Context GraphDatabaseService db) throws IOException {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        ServiceState state = ServiceState.forDatabase(db);
+        stats.put("dislikes", state.dislikes.stats());
+        stats.put("itemJson", state.itemJson.stats());
+        stats.put("results", state.results.stats());
+        stats.put("userIds", state.userIds.stats());
+        stats.put("lanes", state.lanes.stats());
+        stats.put("warmUp", state.warmUp.stats());
+        stats.put("itemUsers", state.itemUsers.stats());
+        stats.put("similarUsers", state.similarUsers.stats());
+        stats.put("dislikesWriter", state.dislikesWriter.stats());
+        return Response.ok().entity(objectMapper.writeValueAsString(stats)).build();
+    }
+
+    // For the load balancer: 200 once the startup warm-up is over, 503 before
+    @GET
+    @Path("/health")
+    public Response health(@Context GraphDatabaseService db) throws IOException {
+        ServiceState state = ServiceState.forDatabase(db);
+        String entity = objectMapper.writeValueAsString(state.warmUp.stats());
+        if (!state.warmUp.isReady()) {
+            return Response.status(Response.Status.SERVICE_UNAVAILABLE).header(RETRY_AFTER, state.retryAfterSeconds)
+                    .entity(entity).type(MediaType.APPLICATION_JSON).build();
+        }
+        return Response.ok().entity(entity).type(MediaType.APPLICATION_JSON).build();
+    }
+
+    @GET
+    @Path("/metrics")
+    public Response metrics(@Context GraphDatabaseService db) throws IOException {
+        StringWriter writer = new StringWriter();
+        ServiceState state = ServiceState.forDatabase(db);
+        state.metrics.write(writer);
+        state.lanes.write(writer);
+        return Response.ok().entity(writer.toString()).type("text/plain; version=0.0.4").build();
+    }
+
+    @POST
+    @Path("/precompute")
+    public Response startPrecompute(@QueryParam("threads") @DefaultValue("0") int threads,
+                                    @QueryParam("chunk") @DefaultValue("1000") int chunk,
+                                    @QueryParam("size") @DefaultValue("100") int size,
+                                    @Context GraphDatabaseService db) throws IOException {
+        if (threads < 0 || threads > MAX_JOB_THREADS || chunk < 1 || size < 1 || size > MAX_RESULTS) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        return startJob(db, "precompute", new PrecomputeJob(db, checkpointFile(db, "precompute"), workers(threads), chunk, size));
+    }
+
+    @GET
+    @Path("/precompute")
+    public Response precomputeProgress(@Context GraphDatabaseService db) throws IOException {
+        return jobProgress(db, "precompute", false);
+    }
+
+    @DELETE
+    @Path("/precompute")
+    public Response cancelPrecompute(@Context GraphDatabaseService db) throws IOException {
+        return jobProgress(db, "precompute", true);
+    }
+
+    @POST
+    @Path("/migrate/dislikes")
+    public Response startDislikesMigration(@QueryParam("delete") @DefaultValue("false") boolean delete,
+                                           @QueryParam("threads") @DefaultValue("0") int threads,
+                                           @QueryParam("chunk") @DefaultValue("1000") int chunk,
+                                           @QueryParam("batch") @DefaultValue("10000") int batch,
+                                           @Context GraphDatabaseService db) throws IOException {
+        if (threads < 0 || threads > MAX_JOB_THREADS || chunk < 1 || batch < 1) {
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        return startJob(db, "migrate", new DislikesMigration(db, checkpointFile(db, "migrate"), workers(threads), chunk, batch, delete));
+    }
+
+    @GET
+    @Path("/migrate/dislikes")
+    public Response dislikesMigrationProgress(@Context GraphDatabaseService db) throws IOException {
+        return jobProgress(db, "migrate", false);
+    }
+
+    @DELETE
+    @Path("/migrate/dislikes")
+    public Response cancelDislikesMigration(@Context GraphDatabaseService db) throws IOException {
+        return jobProgress(db, "migrate", true);
+    }
+
+    // One run of each job at a time
+    private static Response startJob(GraphDatabaseService db, String name, UserJob job) throws IOException {
+        ServiceState state = ServiceState.forDatabase(db);
+        synchronized (state.jobs) {
+            UserJob current = state.jobs.get(name);
+            if (current != null && current.isRunning()) {
+                return Response.status(Response.Status.CONFLICT)
+                        .entity(objectMapper.writeValueAsString(current.progress())).build();
             }
+            state.jobs.put(name, job);
         }
-        return Response.ok().entity(objectMapper.writeValueAsString(results)).build();
+        Thread runner = new Thread(job, name);
+        runner.setDaemon(true);
+        runner.start();
+        return Response.status(Response.Status.ACCEPTED).entity(objectMapper.writeValueAsString(job.progress())).build();
     }
 
-    private RoaringBitmap getRoaringBitmap(Node user, String property) throws IOException {
-        RoaringBitmap rb = new RoaringBitmap();
-        byte[] nodeIds = (byte[])user.getProperty(property);
-        ByteArrayInputStream bais = new ByteArrayInputStream(nodeIds);
-        rb.deserialize(new DataInputStream(bais));
-        return rb;
+    // Cancelling stops after the chunks in flight, the checkpoint is kept so the next run resumes
+    private static Response jobProgress(GraphDatabaseService db, String name, boolean cancel) throws IOException {
+        UserJob job = ServiceState.forDatabase(db).jobs.get(name);
+        if (job == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        if (cancel) {
+            job.cancel();
+        }
+        return Response.ok().entity(objectMapper.writeValueAsString(job.progress())).build();
     }
 
-    private static HashMap<Node, MutableInt> getOtherItems(ArrayList<Node> similarUsers) {
+    private static int workers(int threads) {
+        return threads == 0 ? Math.min(Runtime.getRuntime().availableProcessors(), MAX_JOB_THREADS) : threads;
+    }
+
+    // Set with -D<name>.checkpoint, in the checkpoint directory otherwise
+    private static File checkpointFile(GraphDatabaseService db, String name) {
+        String path = System.getProperty(name + ".checkpoint");
+        if (path != null) {
+            return new File(path);
+        }
+        return new File(ServiceState.forDatabase(db).checkpointDir, name + ".checkpoint");
+    }
+
+    // Relationships read are counted when there is a recorder
+    private static HashMap<Node, MutableInt> getOtherItems(GraphDatabaseService db, long[] similarUsers, Exclusions exclusions, Metrics.Recorder recorder) {
         HashMap<Node, MutableInt> otherItems = new HashMap<>();
-        for (Node similarUser : similarUsers) {
-            for (Relationship rel : similarUser.getRelationships(Direction.OUTGOING,
+        long traversed = 0;
+        for (long similarUser : similarUsers) {
+            for (Relationship rel : db.getNodeById(similarUser).getRelationships(Direction.OUTGOING,
                     RelationshipTypes.PURCHASED, RelationshipTypes.LIKES)) {
+                traversed++;
                 Node item = rel.getEndNode();
+                if (exclusions.contains(item.getId())) {
+                    continue;
+                }
                 MutableInt mutableInt = otherItems.get(item);
                 if (mutableInt == null) {
                     otherItems.put(item, new MutableInt(1));
@@ -177,15 +664,20 @@ public class Service {
                 }
             }
         }
+        if (recorder != null) {
+            recorder.count(Metrics.Counter.RELATIONSHIPS, traversed);
+        }
         return otherItems;
     }
 
-    private static HashMap<Node, MutableInt> getOtherUsers(Set<Node> likedItems, Set<Node> purchasedItems, Node user) {
+    static HashMap<Node, MutableInt> getOtherUsers(Set<Node> likedItems, Set<Node> purchasedItems, Node user, Metrics.Recorder recorder) {
         HashMap<Node, MutableInt> otherUsers = new HashMap<>();
+        long traversed = 0;
 
         for (Node item : purchasedItems) {
             // Give 5 points to every person who purchased an Item I also purchased
             for (Relationship rel : item.getRelationships(RelationshipTypes.PURCHASED, Direction.INCOMING)) {
+                traversed++;
                 Node otherUser = rel.getStartNode();
                 MutableInt mutableInt = otherUsers.get(otherUser);
                 if (mutableInt == null) {
@@ -196,6 +688,7 @@ public class Service {
             }
             // Give 3 points to every person who liked an Item I purchased
             for (Relationship rel : item.getRelationships(RelationshipTypes.LIKES, Direction.INCOMING)) {
+                traversed++;
                 Node otherUser = rel.getStartNode();
                 MutableInt mutableInt = otherUsers.get(otherUser);
                 if (mutableInt == null) {
@@ -209,6 +702,7 @@ public class Service {
         for (Node item : likedItems) {
             // Give 2 points to every person who liked an Item I also liked
             for (Relationship rel : item.getRelationships(RelationshipTypes.LIKES, Direction.INCOMING)) {
+                traversed++;
                 Node otherUser = rel.getStartNode();
                 MutableInt mutableInt = otherUsers.get(otherUser);
                 if (mutableInt == null) {
@@ -219,6 +713,7 @@ public class Service {
             }
             // Give 1 point to every person who purchased an Item I liked
             for (Relationship rel : item.getRelationships(RelationshipTypes.PURCHASED, Direction.INCOMING)) {
+                traversed++;
                 Node otherUser = rel.getStartNode();
                 MutableInt mutableInt = otherUsers.get(otherUser);
                 if (mutableInt == null) {
@@ -230,30 +725,140 @@ public class Service {
         }
         // Remove self from similar users
         otherUsers.remove(user);
+        if (recorder != null) {
+            recorder.count(Metrics.Counter.RELATIONSHIPS, traversed);
+        }
         return otherUsers;
     }
 
-    static ArrayList<Node> findTopK(Collection<Map.Entry<Node, MutableInt>> items, int topK) {
-        Map.Entry<Node, MutableInt>[] heap = new Map.Entry[topK];
-        int count=0;
-        int minValue=Integer.MAX_VALUE;
-        for (Map.Entry<Node, MutableInt> item : items) {
-            if (count < topK || item.getValue().intValue() > minValue) {
-                int idx = Arrays.binarySearch(heap, 0, count, item, REVERSE_MAP_COMPARATOR);
-                idx = (idx < 0) ? -idx : idx + 1;
-                int length = topK - idx;
-                if (length > 0 && idx < topK) System.arraycopy(heap, idx - 1, heap, idx, length);
-                heap[idx-1]=item;
-                if (count < topK) count++;
-                minValue = heap[count-1].getValue().intValue();
+    static void scoreOtherItems(GraphDatabaseService db, long[] similarUsers, Exclusions exclusions, LongIntMap otherItems, Budget budget) {
+        for (long similarUser : similarUsers) {
+            Node user;
+            try {
+                user = db.getNodeById(similarUser);
+            } catch (NotFoundException e) {
+                // Deleted since the similar users were stored
+                continue;
+            }
+            int allowed = budget.allow(user.getDegree(RelationshipTypes.PURCHASED, Direction.OUTGOING)
+                    + user.getDegree(RelationshipTypes.LIKES, Direction.OUTGOING));
+            if (allowed == 0) {
+                continue;
+            }
+            for (Relationship rel : user.getRelationships(Direction.OUTGOING,
+                    RelationshipTypes.PURCHASED, RelationshipTypes.LIKES)) {
+                long itemId = rel.getEndNode().getId();
+                if (!exclusions.contains(itemId)) {
+                    otherItems.addValue(itemId, 1);
+                }
+                if (--allowed == 0) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // The k items after offset that aren't excluded, keeping their order
+    private static long[] page(long[] items, Exclusions exclusions, int k, int offset) {
+        long[] page = new long[k];
+        int count = 0;
+        int skipped = 0;
+        for (long itemId : items) {
+            if (exclusions.contains(itemId)) {
+                continue;
             }
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                page[count++] = itemId;
+                if (count == k) {
+                    break;
+                }
+            }
+        }
+        return count == k ? page : Arrays.copyOf(page, count);
+    }
+
+    // By username unless it is null, then by node id
+    private static Node findUser(GraphDatabaseService db, String username, long userId) {
+        if (username == null) {
+            return UserIds.byId(db, userId);
+        }
+        return ServiceState.forDatabase(db).userIds.find(db, username);
+    }
+
+    static void collectItems(Node user, LongSet likedItems, LongSet purchasedItems) {
+        for (Relationship rel : user.getRelationships(RelationshipTypes.PURCHASED, Direction.OUTGOING)) {
+            purchasedItems.add(rel.getEndNode().getId());
         }
+        for (Relationship rel : user.getRelationships(RelationshipTypes.LIKES, Direction.OUTGOING)) {
+            likedItems.add(rel.getEndNode().getId());
+        }
+    }
+
+    // Reads the relationship chains
+    static final ItemUsers TRAVERSAL = new ItemUsers() {
+        @Override
+        public void addToAll(Node item, RelationshipType type, int points, LongIntMap otherUsers, Budget budget) {
+            Service.addToAll(item, type, points, otherUsers, budget);
+        }
+    };
+
+    // Same weights as getOtherUsers, keyed by node id. Each item is expanded the first time it is seen.
+    static void scoreOtherUsers(Node user, LongSet likedItems, LongSet purchasedItems, LongIntMap otherUsers, Budget budget) {
+        scoreOtherUsers(user, TRAVERSAL, likedItems, purchasedItems, otherUsers, budget);
+    }
+
+    static void scoreOtherUsers(Node user, ItemUsers itemUsers, LongSet likedItems, LongSet purchasedItems, LongIntMap otherUsers, Budget budget) {
+        for (Relationship rel : user.getRelationships(RelationshipTypes.PURCHASED, Direction.OUTGOING)) {
+            Node item = rel.getEndNode();
+            if (purchasedItems.add(item.getId())) {
+                // Give 5 points to every person who purchased an Item I also purchased
+                itemUsers.addToAll(item, RelationshipTypes.PURCHASED, 5, otherUsers, budget);
+                // Give 3 points to every person who liked an Item I purchased
+                itemUsers.addToAll(item, RelationshipTypes.LIKES, 3, otherUsers, budget);
+            }
+        }
+
+        for (Relationship rel : user.getRelationships(RelationshipTypes.LIKES, Direction.OUTGOING)) {
+            Node item = rel.getEndNode();
+            if (likedItems.add(item.getId())) {
+                // Give 2 points to every person who liked an Item I also liked
+                itemUsers.addToAll(item, RelationshipTypes.LIKES, 2, otherUsers, budget);
+                // Give 1 point to every person who purchased an Item I liked
+                itemUsers.addToAll(item, RelationshipTypes.PURCHASED, 1, otherUsers, budget);
+            }
+        }
+        // Remove self from similar users
+        otherUsers.remove(user.getId());
+    }
+
+    // Supernodes are cut off after the first relationships in their chain, the most recently created ones
+    static void addToAll(Node item, RelationshipType type, int points, LongIntMap otherUsers, Budget budget) {
+        int allowed = budget.allow(item.getDegree(type, Direction.INCOMING));
+        if (allowed == 0) {
+            return;
+        }
+        for (Relationship rel : item.getRelationships(type, Direction.INCOMING)) {
+            otherUsers.addValue(rel.getStartNode().getId(), points);
+            if (--allowed == 0 || ((allowed & 1023) == 0 && budget.timeUp())) {
+                break;
+            }
+        }
+    }
+
+    static long[] findTopK(TopK selector, LongIntMap items, int topK, int offset) {
+        selector.reset(topK + offset);
+        selector.offer(items);
+        return selector.toArray(offset);
+    }
 
-        ArrayList<Node> topNodes = new ArrayList<>(topK);
-        for (int i = 0; i < Math.min(items.size(), topK); i++){
-            topNodes.add(heap[i].getKey());
+    static long[] findTopK(Map<Node, MutableInt> items, int topK, int offset) {
+        TopK selector = new TopK(topK + offset);
+        for (Map.Entry<Node, MutableInt> item : items.entrySet()) {
+            selector.offer(item.getKey().getId(), item.getValue().intValue());
         }
-        return topNodes;
+        return selector.toArray(offset);
     }
 
 }
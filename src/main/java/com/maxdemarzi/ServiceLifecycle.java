@@ -0,0 +1,44 @@
+package com.maxdemarzi;
+
+import org.apache.commons.configuration.Configuration;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.server.plugins.Injectable;
+import org.neo4j.server.plugins.PluginLifecycle;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+
+public class ServiceLifecycle implements PluginLifecycle {
+
+    @Override
+    public Collection<Injectable<?>> start(final GraphDatabaseService db, Configuration config) {
+        final ServiceState state = ServiceState.forDatabase(db);
+        String storeDir = config.getString("org.neo4j.server.database.location", null);
+        if (System.getProperty("checkpoint.dir") == null && storeDir != null) {
+            state.checkpointDir = new File(storeDir);
+        }
+
+        // /v1/health answers 503 until this is done
+        Thread warmUp = new Thread(state.warmUp, "warm-up");
+        warmUp.setDaemon(true);
+        warmUp.start();
+
+        if (Boolean.getBoolean("item.index")) {
+            // Requests use the traversal path until the index is ready
+            Thread builder = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    state.itemUsers.build(db);
+                }
+            }, "item-user-index");
+            builder.setDaemon(true);
+            builder.start();
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public void stop() {
+    }
+}
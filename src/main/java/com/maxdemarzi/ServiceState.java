@@ -0,0 +1,100 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.event.ErrorState;
+import org.neo4j.graphdb.event.KernelEventHandler;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Caches and indexes shared by every Service instance, kept per database and dropped when it shuts down
+public class ServiceState {
+
+    private static final ConcurrentHashMap<GraphDatabaseService, ServiceState> STATES = new ConcurrentHashMap<>();
+
+    final DislikesCache dislikes;
+    final ItemJsonCache itemJson;
+    final ResultCache results;
+    final UserIds userIds;
+    final Lanes lanes;
+    final long laneTimeoutMs = Long.getLong("lanes.timeout.ms", 30000);
+    final int retryAfterSeconds = Integer.getInteger("lanes.retry.after", 1);
+    final ItemUserIndex itemUsers;
+    final ParallelScorer parallel;
+    final SimilarUsersStore similarUsers;
+    final DislikesWriter dislikesWriter;
+    final WarmUp warmUp;
+    final Metrics metrics = new Metrics("recommend2");
+    // The latest run of each background job by name, replaced while holding its lock
+    final ConcurrentHashMap<String, UserJob> jobs = new ConcurrentHashMap<>();
+    final long maxRelationships = Long.getLong("budget.relationships", 1000000L);
+    final int maxDegree = Integer.getInteger("budget.degree", 100000);
+    // Upper bound on ids a batch holds in its expansion caches, roughly 8 bytes each
+    final long batchCachedIds = Long.getLong("batch.cache.ids", 16L * 1024 * 1024);
+    // Where background jobs checkpoint, the store directory once the server has told us where it is
+    volatile File checkpointDir = new File(System.getProperty("checkpoint.dir", "."));
+
+    private ServiceState(GraphDatabaseService db) {
+        dislikes = new DislikesCache(Long.getLong("dislikes.cache.bytes", 64L * 1024 * 1024));
+        db.registerTransactionEventHandler(dislikes);
+        itemJson = new ItemJsonCache(Long.getLong("items.cache.bytes", 16L * 1024 * 1024));
+        db.registerTransactionEventHandler(itemJson);
+        results = new ResultCache(Long.getLong("results.cache.bytes", 16L * 1024 * 1024), Long.getLong("results.ttl.ms", 5000));
+        db.registerTransactionEventHandler(results);
+        userIds = new UserIds(Long.getLong("users.cache.entries", 10000000L));
+        db.registerTransactionEventHandler(userIds);
+        int cores = Runtime.getRuntime().availableProcessors();
+        lanes = new Lanes(Integer.getInteger("lanes.light.threads", cores * 2), Integer.getInteger("lanes.light.queue", 256),
+                Integer.getInteger("lanes.heavy.threads", Math.max(1, cores / 2)), Integer.getInteger("lanes.heavy.queue", 16));
+        itemUsers = new ItemUserIndex();
+        if (Boolean.getBoolean("item.index")) {
+            itemUsers.register(db);
+        }
+        parallel = new ParallelScorer(Integer.getInteger("parallel.threads", Runtime.getRuntime().availableProcessors()),
+                Integer.getInteger("parallel.threshold", 200));
+        similarUsers = new SimilarUsersStore(db, Integer.getInteger("similar.fanout", 10000), maxRelationships, maxDegree);
+        db.registerTransactionEventHandler(similarUsers);
+        dislikesWriter = new DislikesWriter(db, Long.getLong("dislikes.window.ms", 10), Integer.getInteger("dislikes.writer.threads", 2));
+        warmUp = new WarmUp(db, this, Integer.getInteger("warmup.items", 10000), Integer.getInteger("warmup.users", 10000),
+                Integer.getInteger("warmup.threads", cores));
+    }
+
+    static ServiceState forDatabase(final GraphDatabaseService db) {
+        ServiceState state = STATES.get(db);
+        if (state != null) {
+            return state;
+        }
+        synchronized (STATES) {
+            state = STATES.get(db);
+            if (state == null) {
+                final ServiceState created = new ServiceState(db);
+                state = created;
+                STATES.put(db, state);
+                db.registerKernelEventHandler(new KernelEventHandler() {
+                    @Override
+                    public void beforeShutdown() {
+                        STATES.remove(db);
+                        created.similarUsers.stop();
+                        created.dislikesWriter.stop();
+                        created.lanes.stop();
+                    }
+
+                    @Override
+                    public void kernelPanic(ErrorState error) {
+                    }
+
+                    @Override
+                    public Object getResource() {
+                        return null;
+                    }
+
+                    @Override
+                    public ExecutionOrder orderComparedTo(KernelEventHandler other) {
+                        return ExecutionOrder.DOESNT_MATTER;
+                    }
+                });
+            }
+        }
+        return state;
+    }
+}
@@ -0,0 +1,333 @@
+package com.maxdemarzi;
+
+import net.openhft.koloboke.collect.LongCursor;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMap;
+import net.openhft.koloboke.collect.map.hash.HashLongObjMaps;
+import net.openhft.koloboke.collect.set.hash.HashLongSet;
+import net.openhft.koloboke.collect.set.hash.HashLongSets;
+import org.neo4j.graphdb.*;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The most similar users of a user, stored on the user node as parallel id and score arrays, best first.
+// Lists are computed the first time they are asked for. After that a single background thread keeps them
+// current from the PURCHASED and LIKES changes of each commit, touching only the users a change affects.
+public class SimilarUsersStore implements TransactionEventHandler<List<ItemChange>> {
+
+    static final String USERS = "similarUsers";
+    static final String SCORES = "similarScores";
+
+    private static final long INTERVAL_MS = 100;
+    private static final int BATCH = 1000;
+    // A batch that keeps failing is retried this many times before its writers are only recomputed
+    private static final int ATTEMPTS = 5;
+
+    private final GraphDatabaseService db;
+    private final int fanout;
+    private final long maxRelationships;
+    private final int maxDegree;
+
+    private final ConcurrentLinkedQueue<ItemChange> changes = new ConcurrentLinkedQueue<>();
+    private final Set<Long> refresh = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+
+    // Only touched by whoever holds flushLock. Never taken by afterCommit or request threads, a flush holds it
+    // while waiting on node locks that a committing transaction still has.
+    private final Object flushLock = new Object();
+    private final TopK topK = new TopK(Service.SIMILAR_USERS);
+    private final Budget budget = new Budget();
+    private final HashLongSet seen = HashLongSets.newMutableSet();
+    private final Map<ItemChange, Integer> attempts = new IdentityHashMap<>();
+
+    private final AtomicLong recomputed = new AtomicLong();
+    private final AtomicLong adjusted = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong fanoutSkipped = new AtomicLong();
+
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile Thread worker;
+    private volatile boolean stopped;
+
+    public SimilarUsersStore(GraphDatabaseService db, int fanout, long maxRelationships, int maxDegree) {
+        this.db = db;
+        this.fanout = fanout;
+        this.maxRelationships = maxRelationships;
+        this.maxDegree = maxDegree;
+    }
+
+    // Null until the user's list has been computed
+    public long[] read(Node user) {
+        return (long[]) user.getProperty(USERS, null);
+    }
+
+    // Asks for the user's list to be computed from scratch
+    public void refresh(long userId) {
+        refresh.add(userId);
+        start();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("pending", changes.size() + refresh.size());
+        stats.put("recomputed", recomputed.get());
+        stats.put("adjusted", adjusted.get());
+        stats.put("failures", failures.get());
+        // Changes given up on after repeated failures, other users' lists may be stale until they are recomputed
+        stats.put("dropped", dropped.get());
+        // Other users of an item past similar.fanout, whose lists were not adjusted
+        stats.put("fanoutSkipped", fanoutSkipped.get());
+        return stats;
+    }
+
+    @Override
+    public List<ItemChange> beforeCommit(TransactionData data) throws Exception {
+        return ItemChange.collect(data);
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, List<ItemChange> committed) {
+        if (!committed.isEmpty()) {
+            changes.addAll(committed);
+            start();
+        }
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, List<ItemChange> committed) {
+    }
+
+    private void start() {
+        if (stopped || !started.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!stopped) {
+                    try {
+                        Thread.sleep(INTERVAL_MS);
+                        flush();
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (RuntimeException e) {
+                        if (stopped) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }, "similar-users");
+        thread.setDaemon(true);
+        worker = thread;
+        thread.start();
+        if (stopped) {
+            thread.interrupt();
+        }
+    }
+
+    void stop() {
+        stopped = true;
+        Thread thread = worker;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    // Applies everything queued so far, in write transactions of at most BATCH changes
+    public void flush() {
+        synchronized (flushLock) {
+            drain();
+        }
+    }
+
+    private void drain() {
+        while (!changes.isEmpty() || !refresh.isEmpty()) {
+            List<ItemChange> batch = new ArrayList<>();
+            ItemChange change;
+            while (batch.size() < BATCH && (change = changes.poll()) != null) {
+                batch.add(change);
+            }
+            Set<Long> recompute = new HashSet<>(refresh);
+            refresh.removeAll(recompute);
+            try {
+                apply(batch, recompute);
+                attempts.keySet().removeAll(batch);
+            } catch (RuntimeException e) {
+                // Usually a deadlock with a concurrent writer. Every adjustment in the batch was rolled back,
+                // so the whole batch goes back in the queue and is applied again next time round.
+                failures.incrementAndGet();
+                if (stopped) {
+                    return;
+                }
+                for (ItemChange failed : batch) {
+                    Integer tried = attempts.get(failed);
+                    int count = tried == null ? 1 : tried + 1;
+                    if (count < ATTEMPTS) {
+                        attempts.put(failed, count);
+                        changes.add(failed);
+                    } else {
+                        attempts.remove(failed);
+                        dropped.incrementAndGet();
+                        recompute.add(failed.userId);
+                    }
+                }
+                refresh.addAll(recompute);
+                return;
+            }
+        }
+    }
+
+    private void apply(List<ItemChange> batch, Set<Long> recompute) {
+        // The items each writer touched
+        HashLongObjMap<HashLongSet> written = HashLongObjMaps.newMutableMap();
+        for (ItemChange change : batch) {
+            HashLongSet items = written.get(change.userId);
+            if (items == null) {
+                items = HashLongSets.newMutableSet();
+                written.put(change.userId, items);
+            }
+            items.add(change.itemId);
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            for (long writerId : written.keySet()) {
+                Node writer = find(writerId);
+                // A writer's own list depends on all of its items, so it is recomputed
+                if (writer != null && writer.hasProperty(USERS)) {
+                    recompute.add(writerId);
+                }
+                // Everyone else who bought or liked one of the touched items only has their score for the writer change
+                HashLongIntMap purchased = HashLongIntMaps.newMutableMap();
+                HashLongIntMap liked = HashLongIntMaps.newMutableMap();
+                if (writer != null) {
+                    count(writer, RelationshipTypes.PURCHASED, purchased);
+                    count(writer, RelationshipTypes.LIKES, liked);
+                }
+                LongCursor items = written.get(writerId).cursor();
+                while (items.moveNext()) {
+                    Node item = find(items.elem());
+                    if (item == null) {
+                        continue;
+                    }
+                    int examined = 0;
+                    for (Relationship rel : item.getRelationships(Direction.INCOMING,
+                            RelationshipTypes.PURCHASED, RelationshipTypes.LIKES)) {
+                        Node other = rel.getStartNode();
+                        if (other.getId() != writerId && !recompute.contains(other.getId()) && other.hasProperty(USERS)) {
+                            adjust(other, writerId, score(other, purchased, liked), recompute);
+                        }
+                        if (++examined == fanout) {
+                            int degree = item.getDegree(RelationshipTypes.PURCHASED, Direction.INCOMING)
+                                    + item.getDegree(RelationshipTypes.LIKES, Direction.INCOMING);
+                            fanoutSkipped.addAndGet(degree - examined);
+                            break;
+                        }
+                    }
+                }
+            }
+
+            for (long userId : recompute) {
+                Node user = find(userId);
+                if (user != null) {
+                    compute(user);
+                }
+            }
+            tx.success();
+        }
+    }
+
+    private Node find(long id) {
+        try {
+            return db.getNodeById(id);
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+
+    private static void count(Node user, RelationshipType type, HashLongIntMap items) {
+        for (Relationship rel : user.getRelationships(type, Direction.OUTGOING)) {
+            items.addValue(rel.getEndNode().getId(), 1);
+        }
+    }
+
+    // The writer's score as seen by the other user, with the weights of Service.scoreOtherUsers
+    private int score(Node other, HashLongIntMap purchased, HashLongIntMap liked) {
+        int score = 0;
+        seen.clear();
+        for (Relationship rel : other.getRelationships(RelationshipTypes.PURCHASED, Direction.OUTGOING)) {
+            long itemId = rel.getEndNode().getId();
+            if (seen.add(itemId)) {
+                score += 5 * purchased.getOrDefault(itemId, 0) + 3 * liked.getOrDefault(itemId, 0);
+            }
+        }
+        seen.clear();
+        for (Relationship rel : other.getRelationships(RelationshipTypes.LIKES, Direction.OUTGOING)) {
+            long itemId = rel.getEndNode().getId();
+            if (seen.add(itemId)) {
+                score += 2 * liked.getOrDefault(itemId, 0) + purchased.getOrDefault(itemId, 0);
+            }
+        }
+        return score;
+    }
+
+    private void adjust(Node user, long otherId, int score, Set<Long> recompute) {
+        long[] ids = (long[]) user.getProperty(USERS);
+        int[] scores = (int[]) user.getProperty(SCORES);
+        int at = -1;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == otherId) {
+                at = i;
+                break;
+            }
+        }
+        if (at < 0 ? score == 0 : scores[at] == score) {
+            return;
+        }
+        if (at >= 0 && score < scores[at] && ids.length == Service.SIMILAR_USERS) {
+            // Whoever was just past the end of a full list may now outrank this user
+            recompute.add(user.getId());
+            return;
+        }
+        topK.reset(Service.SIMILAR_USERS);
+        for (int i = 0; i < ids.length; i++) {
+            if (i != at) {
+                topK.offer(ids[i], scores[i]);
+            }
+        }
+        if (score > 0) {
+            topK.offer(otherId, score);
+        }
+        store(user);
+        adjusted.incrementAndGet();
+    }
+
+    private void compute(Node user) {
+        Scratch scratch = Scratch.get();
+        budget.reset(maxRelationships, maxDegree);
+        Service.scoreOtherUsers(user, scratch.likedItems, scratch.purchasedItems, scratch.otherUsers, budget);
+        topK.reset(Service.SIMILAR_USERS);
+        topK.offer(scratch.otherUsers);
+        store(user);
+        recomputed.incrementAndGet();
+    }
+
+    private void store(Node user) {
+        int count = topK.sort();
+        long[] ids = new long[count];
+        int[] scores = new int[count];
+        for (int i = 0; i < count; i++) {
+            ids[i] = topK.id(i);
+            scores[i] = topK.score(i);
+        }
+        user.setProperty(USERS, ids);
+        user.setProperty(SCORES, scores);
+    }
+}
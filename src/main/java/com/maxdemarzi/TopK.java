@@ -0,0 +1,136 @@
+package com.maxdemarzi;
+
+import net.openhft.koloboke.collect.map.LongIntCursor;
+import net.openhft.koloboke.collect.map.LongIntMap;
+
+import java.util.Arrays;
+
+public class TopK {
+    private long[] ids;
+    private int[] scores;
+    private int capacity;
+    private int size;
+
+    public TopK(int capacity) {
+        ids = new long[capacity];
+        scores = new int[capacity];
+        reset(capacity);
+    }
+
+    // Reuse the same arrays for a new selection, growing them only when needed
+    public void reset(int capacity) {
+        if (capacity > ids.length) {
+            ids = new long[capacity];
+            scores = new int[capacity];
+        }
+        this.capacity = capacity;
+        size = 0;
+    }
+
+    // Gives back arrays an oversized selection grew them to
+    public void shrink(int capacity) {
+        if (ids.length > capacity) {
+            ids = new long[capacity];
+            scores = new int[capacity];
+            reset(capacity);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void offer(LongIntMap items) {
+        LongIntCursor cursor = items.cursor();
+        while (cursor.moveNext()) {
+            offer(cursor.key(), cursor.value());
+        }
+    }
+
+    // The heap root is the worst entry kept so far: lowest score, then highest id
+    public void offer(long id, int score) {
+        if (size < capacity) {
+            ids[size] = id;
+            scores[size] = score;
+            siftUp(size++);
+        } else if (capacity > 0 && worse(ids[0], scores[0], id, score)) {
+            ids[0] = id;
+            scores[0] = score;
+            siftDown(0, size);
+        }
+    }
+
+    // Best first, skipping the first offset entries. Ties are broken by ascending id.
+    public long[] toArray(int offset) {
+        int count = sort();
+        if (offset >= count) {
+            return new long[0];
+        }
+        return Arrays.copyOfRange(ids, offset, count);
+    }
+
+    // Orders the kept entries best first and returns how many there are.
+    // They can be read with id(i) and score(i) until the next offer.
+    public int sort() {
+        for (int end = size - 1; end > 0; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        int count = size;
+        size = 0;
+        return count;
+    }
+
+    public long id(int i) {
+        return ids[i];
+    }
+
+    public int score(int i) {
+        return scores[i];
+    }
+
+    private static boolean worse(long id, int score, long otherId, int otherScore) {
+        return score < otherScore || (score == otherScore && id > otherId);
+    }
+
+    private boolean worse(int i, int j) {
+        return worse(ids[i], scores[i], ids[j], scores[j]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!worse(i, parent)) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i, int end) {
+        while (true) {
+            int child = (i << 1) + 1;
+            if (child >= end) {
+                return;
+            }
+            if (child + 1 < end && worse(child + 1, child)) {
+                child++;
+            }
+            if (!worse(child, i)) {
+                return;
+            }
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        long id = ids[i];
+        ids[i] = ids[j];
+        ids[j] = id;
+        int score = scores[i];
+        scores[i] = scores[j];
+        scores[j] = score;
+    }
+}
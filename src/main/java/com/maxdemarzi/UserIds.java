@@ -0,0 +1,173 @@
+package com.maxdemarzi;
+
+import net.openhft.koloboke.collect.map.hash.HashLongLongMap;
+import net.openhft.koloboke.collect.map.hash.HashLongLongMaps;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.NotFoundException;
+import org.neo4j.graphdb.event.PropertyEntry;
+import org.neo4j.graphdb.event.TransactionData;
+import org.neo4j.graphdb.event.TransactionEventHandler;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Resolves usernames to user nodes without going through the schema index. Only a 64 bit hash of each username
+// is kept, in primitive maps of about 16 bytes per user, so a hit is checked against the node's username before
+// it is returned. Filled as usernames are looked up or written, and kept in step with username changes and
+// deleted users.
+public class UserIds implements TransactionEventHandler<List<UserIds.Change>> {
+
+    private static final String USERNAME = "username";
+    private static final int SEGMENTS = 16;
+    private static final long NONE = -1;
+
+    private final long maxEntries;
+    private final HashLongLongMap[] segments = new HashLongLongMap[SEGMENTS];
+    private final AtomicLong entries = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stale = new AtomicLong();
+
+    public UserIds(long maxEntries) {
+        this.maxEntries = maxEntries;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = HashLongLongMaps.newMutableMap();
+        }
+    }
+
+    // Null for an unknown username, in the caller's transaction
+    public Node find(GraphDatabaseService db, String username) {
+        long hash = hash(username);
+        HashLongLongMap segment = segments[(int) (hash & (SEGMENTS - 1))];
+        long id;
+        synchronized (segment) {
+            id = segment.getOrDefault(hash, NONE);
+        }
+        if (id != NONE) {
+            try {
+                Node user = db.getNodeById(id);
+                if (username.equals(user.getProperty(USERNAME, null))) {
+                    hits.incrementAndGet();
+                    return user;
+                }
+            } catch (NotFoundException e) {
+                // Deleted
+            }
+            // Dropped here too, so entries left behind by a lookup racing a rename or deletion don't hold a slot
+            remove(hash, id);
+            stale.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        Node user = db.findNode(Labels.User, USERNAME, username);
+        if (user != null) {
+            add(hash, user.getId());
+        }
+        return user;
+    }
+
+    // Null unless the id is a user's, in the caller's transaction
+    public static Node byId(GraphDatabaseService db, long id) {
+        try {
+            Node user = db.getNodeById(id);
+            return user.hasLabel(Labels.User) ? user : null;
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+
+    private void add(long hash, long id) {
+        HashLongLongMap segment = segments[(int) (hash & (SEGMENTS - 1))];
+        synchronized (segment) {
+            if (segment.containsKey(hash)) {
+                segment.put(hash, id);
+            } else if (entries.get() < maxEntries) {
+                segment.put(hash, id);
+                entries.incrementAndGet();
+            }
+        }
+    }
+
+    private void remove(long hash, long id) {
+        HashLongLongMap segment = segments[(int) (hash & (SEGMENTS - 1))];
+        synchronized (segment) {
+            if (segment.remove(hash, id)) {
+                entries.decrementAndGet();
+            }
+        }
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("stale", stale.get());
+        stats.put("entries", entries.get());
+        return stats;
+    }
+
+    // FNV-1a over the characters
+    static long hash(String username) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < username.length(); i++) {
+            hash ^= username.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    // Values can no longer be read after commit, so collect the username changes up front
+    @Override
+    public List<Change> beforeCommit(TransactionData data) throws Exception {
+        List<Change> changes = new ArrayList<>();
+        for (PropertyEntry<Node> entry : data.assignedNodeProperties()) {
+            if (USERNAME.equals(entry.key())) {
+                long id = entry.entity().getId();
+                if (entry.previouslyCommitedValue() instanceof String) {
+                    changes.add(new Change(hash((String) entry.previouslyCommitedValue()), id, false));
+                }
+                if (entry.value() instanceof String) {
+                    changes.add(new Change(hash((String) entry.value()), id, true));
+                }
+            }
+        }
+        // Deleted users' usernames show up here too
+        for (PropertyEntry<Node> entry : data.removedNodeProperties()) {
+            if (USERNAME.equals(entry.key()) && entry.previouslyCommitedValue() instanceof String) {
+                changes.add(new Change(hash((String) entry.previouslyCommitedValue()), entry.entity().getId(), false));
+            }
+        }
+        return changes;
+    }
+
+    @Override
+    public void afterCommit(TransactionData data, List<Change> changes) {
+        for (Change change : changes) {
+            if (change.added) {
+                add(change.hash, change.id);
+            } else {
+                remove(change.hash, change.id);
+            }
+        }
+    }
+
+    @Override
+    public void afterRollback(TransactionData data, List<Change> changes) {
+    }
+
+    static class Change {
+        final long hash;
+        final long id;
+        final boolean added;
+
+        Change(long hash, long id, boolean added) {
+            this.hash = hash;
+            this.id = id;
+            this.added = added;
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A background pass over every user. Users are split into chunks of ascending node id that worker threads take in turn.
+// The last user id before the first unfinished chunk is checkpointed to a file, so a run that dies or is cancelled
+// part way picks up from there. A run that finishes removes the checkpoint.
+public abstract class UserJob implements Runnable {
+
+    protected final GraphDatabaseService db;
+    private final File checkpoint;
+    private final int threads;
+    private final int chunkSize;
+
+    private long[] users;
+    private int chunks;
+    private final AtomicInteger nextChunk = new AtomicInteger();
+    private final BitSet finished = new BitSet();
+    private int watermark;
+
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicInteger failedChunks = new AtomicInteger();
+    private volatile long resumedAfter = -1;
+    private volatile long startedAt;
+    private volatile long endedAt;
+    private volatile boolean running;
+    private volatile boolean cancelled;
+    private volatile String error;
+
+    protected UserJob(GraphDatabaseService db, File checkpoint, int threads, int chunkSize) {
+        this.db = db;
+        this.checkpoint = checkpoint;
+        this.threads = threads;
+        this.chunkSize = chunkSize;
+        this.running = true;
+    }
+
+    // Handles users[from] up to users[to], on one of the worker threads
+    protected abstract void process(long[] users, int from, int to);
+
+    // Job specific counters for the progress report
+    protected void addProgress(Map<String, Object> progress) {
+    }
+
+    @Override
+    public void run() {
+        startedAt = System.currentTimeMillis();
+        try {
+            resumedAfter = readCheckpoint();
+            users = userIds(resumedAfter);
+            chunks = (users.length + chunkSize - 1) / chunkSize;
+
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                workers[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        int chunk;
+                        while (!cancelled && (chunk = nextChunk.getAndIncrement()) < chunks) {
+                            int from = chunk * chunkSize;
+                            int to = Math.min(from + chunkSize, users.length);
+                            try {
+                                process(users, from, to);
+                                done.addAndGet(to - from);
+                                finished(chunk);
+                            } catch (RuntimeException e) {
+                                // Left unfinished, so the checkpoint stays before it and a rerun retries it
+                                failedChunks.incrementAndGet();
+                                error = e.toString();
+                            }
+                        }
+                    }
+                }, getClass().getSimpleName() + "-" + i);
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            if (!cancelled && failedChunks.get() == 0) {
+                checkpoint.delete();
+            }
+        } catch (IOException | InterruptedException e) {
+            error = e.toString();
+        } finally {
+            endedAt = System.currentTimeMillis();
+            running = false;
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public Map<String, Object> progress() {
+        Map<String, Object> progress = new LinkedHashMap<>();
+        long[] users = this.users;
+        long elapsed = (running ? System.currentTimeMillis() : endedAt) - startedAt;
+        progress.put("running", running);
+        progress.put("cancelled", cancelled);
+        progress.put("resumedAfter", resumedAfter);
+        progress.put("users", users == null ? 0 : users.length);
+        progress.put("done", done.get());
+        progress.put("failedChunks", failedChunks.get());
+        progress.put("usersPerSecond", elapsed <= 0 ? 0 : done.get() * 1000 / elapsed);
+        addProgress(progress);
+        progress.put("error", error);
+        return progress;
+    }
+
+    // Ascending, so everything up to the checkpoint can be skipped
+    private long[] userIds(long after) {
+        long[] ids = new long[1024];
+        int count = 0;
+        try (Transaction tx = db.beginTx()) {
+            ResourceIterator<Node> nodes = db.findNodes(Labels.User);
+            while (nodes.hasNext()) {
+                long id = nodes.next().getId();
+                if (id > after) {
+                    if (count == ids.length) {
+                        ids = Arrays.copyOf(ids, count * 2);
+                    }
+                    ids[count++] = id;
+                }
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private synchronized void finished(int chunk) {
+        finished.set(chunk);
+        int before = watermark;
+        while (finished.get(watermark)) {
+            watermark++;
+        }
+        if (watermark > before) {
+            try {
+                writeCheckpoint(users[Math.min(watermark * chunkSize, users.length) - 1]);
+            } catch (IOException e) {
+                error = e.toString();
+            }
+        }
+    }
+
+    private long readCheckpoint() throws IOException {
+        if (!checkpoint.exists()) {
+            return -1;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(checkpoint), StandardCharsets.UTF_8))) {
+            String line = reader.readLine();
+            return line == null ? -1 : Long.parseLong(line.trim());
+        }
+    }
+
+    // Written aside and renamed over the old one, so a crash never leaves half a checkpoint
+    private void writeCheckpoint(long userId) throws IOException {
+        File next = new File(checkpoint.getPath() + ".next");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(next), StandardCharsets.UTF_8)) {
+            writer.write(Long.toString(userId));
+        }
+        if (!next.renameTo(checkpoint)) {
+            checkpoint.delete();
+            if (!next.renameTo(checkpoint)) {
+                throw new IOException("Could not write checkpoint " + checkpoint);
+            }
+        }
+    }
+}
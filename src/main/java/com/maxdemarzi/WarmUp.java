@@ -0,0 +1,213 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Run once at startup, before the load balancer sends traffic. Reads the relationship chains of the most connected
+// items and the most active users in parallel, so their store pages are in the page cache, and fills the item JSON,
+// username and dislikes caches on the way. The server reports ready once it finishes, or fails, whichever comes first.
+public class WarmUp implements Runnable {
+
+    private static final int CHUNK = 1000;
+
+    private final GraphDatabaseService db;
+    private final ServiceState state;
+    private final int itemCount;
+    private final int userCount;
+    private final int threads;
+
+    private final AtomicLong items = new AtomicLong();
+    private final AtomicLong users = new AtomicLong();
+    private final AtomicLong relationships = new AtomicLong();
+    private volatile String phase = "waiting";
+    private volatile long startedAt;
+    private volatile long endedAt;
+    private volatile String error;
+    private volatile boolean ready;
+
+    public WarmUp(GraphDatabaseService db, ServiceState state, int itemCount, int userCount, int threads) {
+        this.db = db;
+        this.state = state;
+        this.itemCount = itemCount;
+        this.userCount = userCount;
+        this.threads = threads;
+    }
+
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public void run() {
+        startedAt = System.currentTimeMillis();
+        ExecutorService pool = null;
+        try {
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private int count;
+
+                @Override
+                public synchronized Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "warm-up-" + count++);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            phase = "ranking";
+            long[] topItems = mostConnected(pool, Labels.Item, Direction.INCOMING, itemCount);
+            long[] topUsers = mostConnected(pool, Labels.User, Direction.OUTGOING, userCount);
+
+            phase = "loading";
+            List<Future<?>> chunks = new ArrayList<>();
+            for (int from = 0; from < topItems.length; from += CHUNK) {
+                chunks.add(pool.submit(chunk(topItems, from, Math.min(from + CHUNK, topItems.length), true)));
+            }
+            for (int from = 0; from < topUsers.length; from += CHUNK) {
+                chunks.add(pool.submit(chunk(topUsers, from, Math.min(from + CHUNK, topUsers.length), false)));
+            }
+            for (Future<?> chunk : chunks) {
+                chunk.get();
+            }
+            phase = "done";
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = "Interrupted";
+            phase = "failed";
+        } catch (ExecutionException e) {
+            error = String.valueOf(e.getCause());
+            phase = "failed";
+        } catch (RuntimeException e) {
+            error = e.toString();
+            phase = "failed";
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+            endedAt = System.currentTimeMillis();
+            // A cold server is better than one that never takes traffic
+            ready = true;
+        }
+    }
+
+    // Reading every node's degree also brings in the node store. The label scan only yields ids, the degrees
+    // are read in chunks on the pool and each chunk's best are merged.
+    private long[] mostConnected(ExecutorService pool, Label label, final Direction direction, int count)
+            throws InterruptedException, ExecutionException {
+        if (count < 1) {
+            return new long[0];
+        }
+        long[] ids = new long[1024];
+        int found = 0;
+        try (Transaction tx = db.beginTx()) {
+            ResourceIterator<Node> nodes = db.findNodes(label);
+            while (nodes.hasNext()) {
+                if (found == ids.length) {
+                    ids = Arrays.copyOf(ids, found * 2);
+                }
+                ids[found++] = nodes.next().getId();
+            }
+        }
+        final long[] all = ids;
+        final int chunkCount = Math.min(count, CHUNK);
+        List<Future<TopK>> chunks = new ArrayList<>();
+        for (int from = 0; from < found; from += CHUNK) {
+            final int start = from;
+            final int end = Math.min(from + CHUNK, found);
+            chunks.add(pool.submit(new Callable<TopK>() {
+                @Override
+                public TopK call() {
+                    TopK selector = new TopK(chunkCount);
+                    try (Transaction tx = db.beginTx()) {
+                        for (int i = start; i < end; i++) {
+                            Node node = db.getNodeById(all[i]);
+                            selector.offer(node.getId(), node.getDegree(RelationshipTypes.PURCHASED, direction)
+                                    + node.getDegree(RelationshipTypes.LIKES, direction));
+                        }
+                    }
+                    return selector;
+                }
+            }));
+        }
+        TopK selector = new TopK(count);
+        for (Future<TopK> chunk : chunks) {
+            TopK best = chunk.get();
+            int size = best.sort();
+            for (int i = 0; i < size; i++) {
+                selector.offer(best.id(i), best.score(i));
+            }
+        }
+        return selector.toArray(0);
+    }
+
+    private Callable<Void> chunk(final long[] ids, final int from, final int to, final boolean item) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                try (Transaction tx = db.beginTx()) {
+                    for (int i = from; i < to; i++) {
+                        Node node = db.getNodeById(ids[i]);
+                        if (item) {
+                            warmItem(node);
+                        } else {
+                            warmUser(node);
+                        }
+                    }
+                }
+                return null;
+            }
+        };
+    }
+
+    private void warmItem(Node item) throws IOException {
+        long touched = 0;
+        // Supernodes only as far as a request would read them
+        for (Relationship rel : item.getRelationships(Direction.INCOMING, RelationshipTypes.PURCHASED, RelationshipTypes.LIKES)) {
+            // A proxy alone never reads the record, the label check does
+            rel.getStartNode().hasLabel(Labels.User);
+            if (++touched == state.maxDegree) {
+                break;
+            }
+        }
+        state.itemJson.render(item, null);
+        relationships.addAndGet(touched);
+        items.incrementAndGet();
+    }
+
+    private void warmUser(Node user) {
+        long touched = 0;
+        for (Relationship rel : user.getRelationships(Direction.OUTGOING, RelationshipTypes.PURCHASED, RelationshipTypes.LIKES)) {
+            rel.getEndNode().hasLabel(Labels.Item);
+            touched++;
+        }
+        Object username = user.getProperty("username", null);
+        if (username instanceof String) {
+            state.userIds.find(db, (String) username);
+        }
+        state.dislikes.get(user);
+        relationships.addAndGet(touched);
+        users.incrementAndGet();
+    }
+
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("ready", ready);
+        stats.put("phase", phase);
+        stats.put("items", items.get());
+        stats.put("users", users.get());
+        stats.put("relationships", relationships.get());
+        if (startedAt > 0) {
+            stats.put("elapsedMs", (endedAt > 0 ? endedAt : System.currentTimeMillis()) - startedAt);
+        }
+        if (error != null) {
+            stats.put("error", error);
+        }
+        return stats;
+    }
+}
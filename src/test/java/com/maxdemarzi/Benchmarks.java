@@ -0,0 +1,26 @@
+package com.maxdemarzi;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks with the usual JMH command line options and writes the results as JSON,
+// to target/jmh-result.json unless -rff says otherwise. With no benchmarks named, runs all of them.
+public class Benchmarks {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder builder = new OptionsBuilder();
+        if (commandLine.getIncludes().isEmpty()) {
+            builder.include("com\\.maxdemarzi\\..*Benchmark");
+        }
+        Options options = builder
+                .parent(commandLine)
+                .resultFormat(ResultFormatType.JSON)
+                .result(commandLine.getResult().orElse("target/jmh-result.json"))
+                .build();
+        new Runner(options).run();
+    }
+}
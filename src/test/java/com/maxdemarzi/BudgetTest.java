@@ -0,0 +1,36 @@
+package com.maxdemarzi;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BudgetTest {
+
+    @Test
+    public void shouldCapSupernodesAndTotal() {
+        Budget budget = new Budget();
+        budget.reset(150, 100);
+        assertEquals(10, budget.allow(10));
+        assertFalse(budget.isTruncated());
+        assertEquals(100, budget.allow(5000));
+        assertTrue(budget.isTruncated());
+        assertEquals(40, budget.allow(50));
+        assertEquals(0, budget.allow(50));
+        assertEquals(150, budget.touched());
+        assertEquals(0.25, budget.completed(), 0.0);
+    }
+
+    @Test
+    public void shouldStopAtDeadline() throws InterruptedException {
+        Budget budget = new Budget();
+        budget.reset(1000, 1000, 10);
+        assertEquals(10, budget.allow(10));
+        Thread.sleep(20);
+        assertEquals(0, budget.allow(10));
+        assertTrue(budget.timeUp());
+        assertTrue(budget.isTruncated());
+        assertEquals(0.5, budget.completed(), 0.0);
+    }
+}
@@ -0,0 +1,115 @@
+package com.maxdemarzi;
+
+import org.codehaus.jackson.map.ObjectMapper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.test.TestGraphDatabaseFactory;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BulkLoaderTest {
+
+    private File csvDir;
+    private File storeDir;
+    private GraphDatabaseService db;
+
+    @Before
+    public void setUp() throws IOException {
+        csvDir = temporaryDirectory("bulk-csv");
+        storeDir = temporaryDirectory("bulk-store");
+
+        // The same graph as ServiceTest, dislikes only as bitmaps
+        StringBuilder items = new StringBuilder("name,color\n");
+        for (int i = 0; i < 105; i++) {
+            items.append("thing").append(i).append(",red\r\n");
+        }
+        StringBuilder users = new StringBuilder("username\n");
+        StringBuilder likes = new StringBuilder("username,item\n");
+        StringBuilder purchases = new StringBuilder("username,item\n");
+        StringBuilder dislikes = new StringBuilder("username,item\n");
+        for (int i = 0; i < 100; i++) {
+            users.append("user").append(i).append('\n');
+            likes.append("user").append(i).append(",thing").append(i).append('\n');
+            likes.append("user").append(i).append(",thing").append(i + 1).append('\n');
+            purchases.append("user").append(i).append(",thing").append(i + 2).append('\n');
+            purchases.append("user").append(i).append(",thing").append(i + 3).append('\n');
+            dislikes.append("user").append(i).append(",thing").append(i + 4).append('\n');
+            dislikes.append("user").append(i).append(",thing").append(i + 5).append('\n');
+        }
+        dislikes.append("user1,nothing");
+        write("items.csv", items);
+        write("users.csv", users);
+        write("likes.csv", likes);
+        write("purchases.csv", purchases);
+        write("dislikes.csv", dislikes);
+    }
+
+    @After
+    public void tearDown() {
+        if (db != null) {
+            db.shutdown();
+        }
+    }
+
+    @Test
+    public void shouldLoadCsvFiles() throws IOException {
+        Map<String, Object> stats = new BulkLoader(csvDir).load(storeDir);
+        assertEquals(105L, stats.get("items"));
+        assertEquals(100L, stats.get("users"));
+        assertEquals(200L, stats.get("likes"));
+        assertEquals(200L, stats.get("purchases"));
+        assertEquals(200L, stats.get("dislikes"));
+        assertEquals(1L, stats.get("skipped"));
+
+        db = new TestGraphDatabaseFactory().newEmbeddedDatabase(storeDir.getPath());
+        try (Transaction tx = db.beginTx()) {
+            assertTrue(db.schema().getConstraints(Labels.User).iterator().hasNext());
+            Node user = db.findNode(Labels.User, "username", "user10");
+            assertFalse(user.hasRelationship(RelationshipTypes.DISLIKES));
+            DislikeBitmap.Builder dislikes = DislikesCache.read(user);
+            assertEquals(2, dislikes.cardinality());
+            assertTrue(dislikes.contains(db.findNode(Labels.Item, "name", "thing15").getId()));
+            assertEquals("red", db.findNode(Labels.Item, "name", "thing15").getProperty("color"));
+        }
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ((StreamingOutput) new Service().Recommend3("user10", 10, 0, false, false, "name", 0, 0, db).getEntity()).write(baos);
+        List<Map<String, Object>> actual = new ObjectMapper().readValue(baos.toByteArray(), ArrayList.class);
+        Set<Object> names = new HashSet<>();
+        for (Map<String, Object> item : actual) {
+            names.add(item.get("name"));
+        }
+        assertEquals(new HashSet<Object>(Arrays.asList("thing9", "thing8", "thing16", "thing7")), names);
+    }
+
+    private void write(String name, CharSequence content) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(new File(csvDir, name)), StandardCharsets.UTF_8)) {
+            writer.append(content);
+        }
+    }
+
+    private static File temporaryDirectory(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Could not create " + dir);
+        }
+        dir.deleteOnExit();
+        return dir;
+    }
+}
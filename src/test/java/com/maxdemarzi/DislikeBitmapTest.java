@@ -0,0 +1,79 @@
+package com.maxdemarzi;
+
+import org.junit.Test;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class DislikeBitmapTest {
+
+    @Test
+    public void shouldReadPlainRoaringBitmaps() throws IOException {
+        RoaringBitmap legacy = RoaringBitmap.bitmapOf(1, 1000, 100000000);
+        byte[] bytes = serialize(legacy);
+
+        DislikeBitmap dislikes = DislikeBitmap.wrap(bytes);
+        assertEquals(3, dislikes.cardinality());
+        assertTrue(dislikes.contains(1000));
+        assertFalse(dislikes.contains(1001));
+        assertFalse(dislikes.contains((1L << 32) | 1000));
+
+        // Ids that fit in 32 bits are written exactly as they were before
+        assertArrayEquals(bytes, dislikes.toBuilder().toBytes());
+    }
+
+    @Test
+    public void shouldKeepIdsPastTheIntRange() {
+        long[] ids = {7, Integer.MAX_VALUE + 1L, 1L << 32, (5L << 32) | 7, Long.MAX_VALUE};
+        DislikeBitmap.Builder builder = new DislikeBitmap.Builder();
+        for (long id : ids) {
+            builder.add(id);
+        }
+        DislikeBitmap dislikes = DislikeBitmap.wrap(builder.toBytes());
+        assertEquals(ids.length, dislikes.cardinality());
+        for (long id : ids) {
+            assertTrue(dislikes.contains(id));
+        }
+        assertFalse(dislikes.contains(8));
+        assertFalse(dislikes.contains((5L << 32) | 8));
+        assertFalse(dislikes.contains(3L << 32));
+
+        DislikeBitmap.Builder removed = dislikes.toBuilder();
+        removed.remove(7);
+        removed.remove(1L << 32);
+        dislikes = DislikeBitmap.wrap(removed.toBytes());
+        assertEquals(ids.length - 2, dislikes.cardinality());
+        assertFalse(dislikes.contains(7));
+        assertTrue(dislikes.contains((5L << 32) | 7));
+    }
+
+    @Test
+    public void shouldOnlyPayForPartitionsInUse() throws IOException {
+        RoaringBitmap low = new RoaringBitmap();
+        DislikeBitmap.Builder builder = new DislikeBitmap.Builder();
+        for (int i = 0; i < 250; i++) {
+            low.add(i * 4000);
+            builder.add(i * 4000);
+        }
+        int legacySize = serialize(low).length;
+        assertEquals(legacySize, builder.toBytes().length);
+
+        // One id past the int range costs a header, a partition header and a one item bitmap
+        builder.add(1L << 40);
+        assertEquals(legacySize + 6 + 8 + 8 + 18, builder.toBytes().length);
+
+        // Emptying a high partition goes back to the plain format
+        builder.remove(1L << 40);
+        assertEquals(legacySize, builder.toBytes().length);
+    }
+
+    private static byte[] serialize(RoaringBitmap bitmap) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        bitmap.serialize(new DataOutputStream(baos));
+        return baos.toByteArray();
+    }
+}
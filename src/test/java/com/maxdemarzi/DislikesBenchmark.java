@@ -0,0 +1,75 @@
+package com.maxdemarzi;
+
+import org.openjdk.jmh.annotations.*;
+import org.roaringbitmap.RoaringBitmap;
+import org.roaringbitmap.buffer.ImmutableRoaringBitmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Turning the dislikes property into something that answers contains, by copying versus by wrapping the bytes.
+// measureDislikeBitmap reads the stored encoding, with item ids spread over as many 32 bit partitions as asked.
+@State(Scope.Thread)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class DislikesBenchmark {
+
+    private byte[] bytes;
+    private byte[] encoded;
+    private int probe;
+    private long encodedProbe;
+
+    @Param({"10", "250", "10000"})
+    public int dislikesCount;
+
+    @Param({"1000000"})
+    public int itemCount;
+
+    @Param({"1", "4"})
+    public int partitions;
+
+    @Setup
+    public void prepare() throws IOException {
+        Random rand = new Random(42);
+        RoaringBitmap dislikes = new RoaringBitmap();
+        DislikeBitmap.Builder builder = new DislikeBitmap.Builder();
+        for (int i = 0; i < dislikesCount; i++) {
+            int itemId = rand.nextInt(itemCount);
+            dislikes.add(itemId);
+            builder.add(((long) (i % partitions) << 32) | itemId);
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        dislikes.serialize(new DataOutputStream(baos));
+        bytes = baos.toByteArray();
+        encoded = builder.toBytes();
+        probe = rand.nextInt(itemCount);
+        encodedProbe = ((long) rand.nextInt(partitions) << 32) | probe;
+    }
+
+    @Benchmark
+    public boolean measureDeserialize() throws IOException {
+        RoaringBitmap dislikes = new RoaringBitmap();
+        dislikes.deserialize(new DataInputStream(new ByteArrayInputStream(bytes)));
+        return dislikes.contains(probe);
+    }
+
+    @Benchmark
+    public boolean measureWrap() {
+        return new ImmutableRoaringBitmap(ByteBuffer.wrap(bytes)).contains(probe);
+    }
+
+    @Benchmark
+    public boolean measureDislikeBitmap() {
+        return DislikeBitmap.wrap(encoded).contains(encodedProbe);
+    }
+
+}
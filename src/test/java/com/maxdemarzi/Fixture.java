@@ -0,0 +1,191 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+// Benchmark graphs with Zipf distributed item popularity and Pareto distributed user activity.
+// Each combination of parameters is generated once into target/fixtures and reopened by later forks and runs.
+public class Fixture {
+
+    private static final File ROOT = new File(System.getProperty("fixture.dir", "target/fixtures"));
+    // Pareto shape, the lower the heavier the tail. The mean stays at the requested count.
+    private static final double ACTIVITY_SHAPE = 1.5;
+    private static final int BATCH = 10000;
+    private static final OutputStream DISCARD = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    final int userCount;
+    final int itemCount;
+    final int likesCount;
+    final int dislikesCount;
+    final double skew;
+    final long seed;
+
+    public Fixture(int userCount, int itemCount, int likesCount, int dislikesCount, double skew, long seed) {
+        this.userCount = userCount;
+        this.itemCount = itemCount;
+        this.likesCount = likesCount;
+        this.dislikesCount = dislikesCount;
+        this.skew = skew;
+        this.seed = seed;
+    }
+
+    public GraphDatabaseService open() throws IOException {
+        return new GraphDatabaseFactory().newEmbeddedDatabase(generate().getPath());
+    }
+
+    // A fresh copy of the fixture for benchmarks that write to the store, so every run starts from the same graph
+    public GraphDatabaseService openCopy() throws IOException {
+        File dir = generate();
+        File copy = new File(ROOT, dir.getName() + ".copy");
+        delete(copy);
+        copy(dir, copy);
+        return new GraphDatabaseFactory().newEmbeddedDatabase(copy.getPath());
+    }
+
+    private File generate() throws IOException {
+        File dir = new File(ROOT, String.format("users-%d_items-%d_likes-%d_dislikes-%d_skew-%s_seed-%d",
+                userCount, itemCount, likesCount, dislikesCount, skew, seed));
+        if (!dir.isDirectory()) {
+            // Generated aside and renamed, so an interrupted generation is never mistaken for a finished one
+            File partial = new File(ROOT, dir.getName() + ".partial");
+            delete(partial);
+            GraphDatabaseService db = new GraphDatabaseFactory().newEmbeddedDatabase(partial.getPath());
+            try {
+                new Service().migrate(db);
+                populate(db);
+            } finally {
+                db.shutdown();
+            }
+            if (!partial.renameTo(dir)) {
+                throw new IOException("Could not move " + partial + " to " + dir);
+            }
+        }
+        return dir;
+    }
+
+    public String username(int user) {
+        return "user" + user;
+    }
+
+    // Responses stream their JSON, so benchmarks write them out to include serialization in the measurement
+    static void write(Response response) throws IOException {
+        ((StreamingOutput) response.getEntity()).write(DISCARD);
+    }
+
+    private void populate(GraphDatabaseService db) {
+        Random rand = new Random(seed);
+        long[] items = new long[itemCount];
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < itemCount; i++) {
+                Node item = db.createNode(Labels.Item);
+                item.setProperty("name", "thing" + i);
+                items[i] = item.getId();
+            }
+            tx.success();
+        }
+
+        double[] popularity = zipf(itemCount, skew);
+        Transaction tx = db.beginTx();
+        try {
+            for (int i = 0; i < userCount; i++) {
+                Node user = db.createNode(Labels.User);
+                user.setProperty("username", username(i));
+
+                int likes = activity(rand, likesCount);
+                for (int j = 0; j < likes; j++) {
+                    user.createRelationshipTo(db.getNodeById(items[pick(rand, popularity)]), RelationshipTypes.LIKES);
+                }
+                for (int j = 0; j < Math.max(1, likes / 10); j++) {
+                    user.createRelationshipTo(db.getNodeById(items[pick(rand, popularity)]), RelationshipTypes.PURCHASED);
+                }
+
+                DislikeBitmap.Builder dislikes = new DislikeBitmap.Builder();
+                int dislikeCount = dislikesCount == 0 ? 0 : activity(rand, dislikesCount);
+                for (int j = 0; j < dislikeCount; j++) {
+                    long itemId = items[pick(rand, popularity)];
+                    dislikes.add(itemId);
+                    user.createRelationshipTo(db.getNodeById(itemId), RelationshipTypes.DISLIKES);
+                }
+                DislikesCache.write(user, dislikes);
+
+                if (i % BATCH == BATCH - 1) {
+                    tx.success();
+                    tx.close();
+                    tx = db.beginTx();
+                }
+            }
+            tx.success();
+        } finally {
+            tx.close();
+        }
+    }
+
+    // Cumulative probabilities of picking each item, item 0 being the most popular
+    static double[] zipf(int count, double skew) {
+        double[] cumulative = new double[count];
+        double total = 0;
+        for (int i = 0; i < count; i++) {
+            total += 1.0 / Math.pow(i + 1, skew);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < count; i++) {
+            cumulative[i] /= total;
+        }
+        return cumulative;
+    }
+
+    static int pick(Random rand, double[] cumulative) {
+        int at = Arrays.binarySearch(cumulative, rand.nextDouble());
+        return Math.min(at < 0 ? -at - 1 : at, cumulative.length - 1);
+    }
+
+    // At least one, capped so the heaviest users stay within the item count
+    private int activity(Random rand, int mean) {
+        double scale = mean * (ACTIVITY_SHAPE - 1) / ACTIVITY_SHAPE;
+        double value = scale / Math.pow(1 - rand.nextDouble(), 1 / ACTIVITY_SHAPE);
+        return (int) Math.max(1, Math.min(value, itemCount / 2));
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        File[] children = from.listFiles();
+        if (children == null) {
+            Files.copy(from.toPath(), to.toPath());
+            return;
+        }
+        if (!to.mkdirs()) {
+            throw new IOException("Could not create " + to);
+        }
+        for (File child : children) {
+            copy(child, new File(to, child.getName()));
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,100 @@
+package com.maxdemarzi;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LanesTest {
+
+    @Test
+    public void shouldRejectWhenTheLaneIsFull() throws Exception {
+        Lanes lanes = new Lanes(1, 1, 1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        Callable<Integer> blocked = new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                release.await();
+                return 1;
+            }
+        };
+        try {
+            Future<Integer> running = lanes.submit(Lanes.Lane.HEAVY, blocked);
+            Future<Integer> queued = lanes.submit(Lanes.Lane.HEAVY, blocked);
+            assertNotNull(running);
+            assertNotNull(queued);
+            assertNull(lanes.submit(Lanes.Lane.HEAVY, blocked));
+
+            // A full heavy lane doesn't hold up the light one
+            Future<Integer> light = lanes.submit(Lanes.Lane.LIGHT, new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return 2;
+                }
+            });
+            assertEquals(2, (int) lanes.await(Lanes.Lane.LIGHT, light, 5000));
+
+            release.countDown();
+            assertEquals(1, (int) lanes.await(Lanes.Lane.HEAVY, running, 5000));
+            assertEquals(1, (int) lanes.await(Lanes.Lane.HEAVY, queued, 5000));
+
+            Map heavy = (Map) lanes.stats().get("heavy");
+            assertEquals(1L, heavy.get("rejected"));
+            assertEquals(0L, ((Map) lanes.stats().get("light")).get("rejected"));
+        } finally {
+            release.countDown();
+            lanes.stop();
+        }
+    }
+
+    @Test
+    public void shouldCancelWorkThatTimesOut() throws Exception {
+        Lanes lanes = new Lanes(1, 1, 1, 1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        try {
+            Future<Integer> slow = lanes.submit(Lanes.Lane.LIGHT, new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        interrupted.set(true);
+                    }
+                    return 1;
+                }
+            });
+            assertNull(lanes.await(Lanes.Lane.LIGHT, slow, 10));
+            assertTrue(slow.isCancelled());
+
+            // The running task is left to finish on its own rather than interrupted
+            release.countDown();
+            Future<Integer> next = lanes.submit(Lanes.Lane.LIGHT, new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return 2;
+                }
+            });
+            assertEquals(2, (int) lanes.await(Lanes.Lane.LIGHT, next, 5000));
+            assertFalse(interrupted.get());
+
+            StringWriter writer = new StringWriter();
+            lanes.write(writer);
+            assertTrue(writer.toString(), writer.toString().contains("lane_timed_out_total{lane=\"light\"} 1\n"));
+            assertTrue(writer.toString(), writer.toString().contains("lane_rejected_total{lane=\"heavy\"} 0\n"));
+        } finally {
+            release.countDown();
+            lanes.stop();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.maxdemarzi;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void shouldKeepBucketsWithinAnEighth() {
+        for (long nanos = 1; nanos < (1L << 40); nanos = nanos * 3 / 2 + 1) {
+            long value = Metrics.value(Metrics.bucket(nanos));
+            assertTrue(nanos + " -> " + value, Math.abs(value - nanos) <= nanos / 8 + 1);
+        }
+        assertEquals(Metrics.BUCKETS - 1, Metrics.bucket(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void shouldMergeThreads() throws Exception {
+        final Metrics metrics = new Metrics("test");
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Metrics.Recorder recorder = metrics.recorder();
+                    for (int i = 1; i <= 1000; i++) {
+                        recorder.time(Metrics.Phase.TOP_K, System.nanoTime() - i * 1000L);
+                        recorder.count(Metrics.Counter.REQUESTS, 1);
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(4000, metrics.count(Metrics.Counter.REQUESTS));
+        long median = metrics.quantile(Metrics.Phase.TOP_K, 0.5);
+        assertTrue(String.valueOf(median), median > 400000 && median < 700000);
+    }
+
+    @Test
+    public void shouldWriteTextFormat() throws IOException {
+        Metrics metrics = new Metrics("test");
+        metrics.recorder().count(Metrics.Counter.BYTES, 42);
+        StringWriter writer = new StringWriter();
+        metrics.write(writer);
+        assertTrue(writer.toString().contains("test_bytes_emitted_total 42\n"));
+        assertTrue(writer.toString().contains("test_phase_seconds_count{phase=\"top_k\"} 0\n"));
+    }
+}
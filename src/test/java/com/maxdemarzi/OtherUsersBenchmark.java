@@ -0,0 +1,95 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// The similar user expansion on its own, node keyed maps against the primitive ones
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(4)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class OtherUsersBenchmark {
+
+    private GraphDatabaseService db;
+    private long[] targets;
+
+    @Param({"10000", "100000"})
+    public int userCount;
+
+    @Param({"1000", "10000"})
+    public int itemCount;
+
+    @Param({"50"})
+    public int likesCount;
+
+    @Param({"1.0"})
+    public double skew;
+
+    @Param({"1000"})
+    public int targetCount;
+
+    @Setup
+    public void prepare() throws IOException {
+        Fixture fixture = new Fixture(userCount, itemCount, likesCount, 0, skew, 42);
+        db = fixture.open();
+        Random rand = new Random(7);
+        targets = new long[targetCount];
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < targetCount; i++) {
+                targets[i] = db.findNode(Labels.User, "username", fixture.username(rand.nextInt(userCount))).getId();
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Target {
+        private final Random rand = new Random();
+        private final Budget budget = new Budget();
+
+        long next(OtherUsersBenchmark benchmark) {
+            return benchmark.targets[rand.nextInt(benchmark.targets.length)];
+        }
+    }
+
+    @Benchmark
+    public int measureGetOtherUsers(Target target) {
+        try (Transaction tx = db.beginTx()) {
+            Node user = db.getNodeById(target.next(this));
+            Set<Node> likedItems = new HashSet<>();
+            Set<Node> purchasedItems = new HashSet<>();
+            for (Relationship rel : user.getRelationships(RelationshipTypes.LIKES, Direction.OUTGOING)) {
+                likedItems.add(rel.getEndNode());
+            }
+            for (Relationship rel : user.getRelationships(RelationshipTypes.PURCHASED, Direction.OUTGOING)) {
+                purchasedItems.add(rel.getEndNode());
+            }
+            return Service.getOtherUsers(likedItems, purchasedItems, user, null).size();
+        }
+    }
+
+    @Benchmark
+    public int measureScoreOtherUsers(Target target) {
+        try (Transaction tx = db.beginTx()) {
+            Node user = db.getNodeById(target.next(this));
+            Scratch scratch = Scratch.get();
+            target.budget.reset(Long.MAX_VALUE, Integer.MAX_VALUE);
+            Service.scoreOtherUsers(user, scratch.likedItems, scratch.purchasedItems, scratch.otherUsers, target.budget);
+            return scratch.otherUsers.size();
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.maxdemarzi;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.ResourceIterator;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// The heaviest user of a fixture expanded sequentially and in parallel, on its own and while light users are served
+// alongside. parallelThreshold=2147483647 turns the parallel path off, which is the baseline for the mixed group.
+@State(Scope.Benchmark)
+@Warmup(iterations = 10)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParallelBenchmark {
+
+    private Service service;
+    private GraphDatabaseService db;
+    private long heavyUser;
+    private String heavyUsername;
+    private String[] lightUsers;
+
+    @Param({"1", "2", "4", "8"})
+    public int parallelThreads;
+
+    @Param({"200", "2147483647"})
+    public int parallelThreshold;
+
+    @Param({"10000"})
+    public int userCount;
+
+    @Param({"10000"})
+    public int itemCount;
+
+    @Param({"50"})
+    public int likesCount;
+
+    @Param({"1.0"})
+    public double skew;
+
+    @Param({"1000"})
+    public int targetCount;
+
+    @Setup
+    public void prepare() throws IOException {
+        // Read when the service state is created for this database
+        System.setProperty("parallel.threads", String.valueOf(parallelThreads));
+        System.setProperty("parallel.threshold", String.valueOf(parallelThreshold));
+        db = new Fixture(userCount, itemCount, likesCount, 0, skew, 42).open();
+        service = new Service();
+
+        // The most active user is the heavy one, light users are the ones under the default threshold
+        int heaviest = -1;
+        lightUsers = new String[targetCount];
+        int lightCount = 0;
+        Random rand = new Random(7);
+        try (Transaction tx = db.beginTx()) {
+            ResourceIterator<Node> users = db.findNodes(Labels.User);
+            while (users.hasNext()) {
+                Node user = users.next();
+                int degree = user.getDegree(RelationshipTypes.PURCHASED, Direction.OUTGOING)
+                        + user.getDegree(RelationshipTypes.LIKES, Direction.OUTGOING);
+                if (degree > heaviest) {
+                    heaviest = degree;
+                    heavyUser = user.getId();
+                    heavyUsername = (String) user.getProperty("username");
+                }
+                if (degree < 200) {
+                    // Reservoir sample, so light users come from the whole fixture
+                    int at = lightCount < targetCount ? lightCount : rand.nextInt(lightCount + 1);
+                    if (at < targetCount) {
+                        lightUsers[at] = (String) user.getProperty("username");
+                    }
+                    lightCount++;
+                }
+            }
+        }
+        lightUsers = Arrays.copyOf(lightUsers, Math.min(lightCount, targetCount));
+    }
+
+    @TearDown
+    public void tearDown() {
+        db.shutdown();
+    }
+
+    @State(Scope.Thread)
+    public static class Target {
+        private final Random rand = new Random();
+        private final Budget budget = new Budget();
+
+        String nextLight(ParallelBenchmark benchmark) {
+            return benchmark.lightUsers[rand.nextInt(benchmark.lightUsers.length)];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int measureHeavySequential(Target target) {
+        try (Transaction tx = db.beginTx()) {
+            Scratch scratch = Scratch.get();
+            target.budget.reset(Long.MAX_VALUE, Integer.MAX_VALUE);
+            Service.scoreOtherUsers(db.getNodeById(heavyUser), scratch.likedItems, scratch.purchasedItems,
+                    scratch.otherUsers, target.budget);
+            return scratch.otherUsers.size();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int measureHeavyParallel(Target target) {
+        try (Transaction tx = db.beginTx()) {
+            Scratch scratch = Scratch.get();
+            target.budget.reset(Long.MAX_VALUE, Integer.MAX_VALUE);
+            ServiceState.forDatabase(db).parallel.scoreOtherUsers(db, db.getNodeById(heavyUser), scratch.likedItems,
+                    scratch.purchasedItems, scratch.otherUsers, target.budget);
+            return scratch.otherUsers.size();
+        }
+    }
+
+    // One thread keeps asking for the heavy user while three serve light users. Compare the light users'
+    // throughput across parallelThreshold to see what the parallel expansion costs everyone else.
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void measureMixedHeavy() throws IOException {
+        Fixture.write(service.Recommend3(heavyUsername, 10, 0, false, false, null, 0, 0, db));
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    @BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public void measureMixedLight(Target target) throws IOException {
+        Fixture.write(service.Recommend3(target.nextLight(this), 10, 0, false, false, null, 0, 0, db));
+    }
+}
@@ -0,0 +1,43 @@
+package com.maxdemarzi;
+
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class ResultCacheTest {
+
+    @Test
+    public void shouldOnlyDropResultsInvalidatedWhileLoading() {
+        final ResultCache cache = new ResultCache(1024 * 1024, 60000);
+        // Another segment's user changing doesn't stop the result being kept
+        cache.get(1L, 10, new ResultCache.Loader() {
+            @Override
+            public long[] load(int size) {
+                cache.invalidate(2L);
+                return new long[]{7};
+            }
+        });
+        // The same user changing does
+        cache.get(3L, 10, new ResultCache.Loader() {
+            @Override
+            public long[] load(int size) {
+                cache.invalidate(3L);
+                return new long[]{7};
+            }
+        });
+        ResultCache.Loader loader = new ResultCache.Loader() {
+            @Override
+            public long[] load(int size) {
+                return new long[]{7};
+            }
+        };
+        cache.get(1L, 10, loader);
+        cache.get(3L, 10, loader);
+
+        Map<String, Object> stats = cache.stats();
+        assertEquals(1L, stats.get("hits"));
+        assertEquals(3L, stats.get("misses"));
+    }
+}
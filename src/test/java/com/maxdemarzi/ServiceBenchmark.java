@@ -1,48 +1,79 @@
 package com.maxdemarzi;
 
-import org.neo4j.graphdb.DynamicLabel;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Transaction;
-import org.neo4j.test.TestGraphDatabaseFactory;
 import org.openjdk.jmh.annotations.*;
-import org.roaringbitmap.RoaringBitmap;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
 
 @State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@Threads(4)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
 public class ServiceBenchmark {
 
     private Service service;
     private GraphDatabaseService db;
+    private String[] targets;
+    private long[] targetIds;
 
-    //@Param({"100", "10000", "100000"})
-    @Param({"10000"})
+    @Param({"10000", "100000"})
     public int userCount;
 
-    @Param({"1000"})
+    @Param({"1000", "10000"})
     public int itemCount;
 
     @Param({"50"})
     public int likesCount;
 
-    @Param({"250"})
+    @Param({"0", "250"})
     public int dislikesCount;
 
-    @Param({"5"})
-    public int purchaseCount;
+    // Zipf exponent of item popularity
+    @Param({"1.0"})
+    public double skew;
+
+    // How many distinct users the requests are spread over
+    @Param({"1000"})
+    public int targetCount;
+
+    // Off so recommend2 measures the traversal, -p resultsTtlMs=5000 measures it behind the per-user result cache
+    @Param({"0"})
+    public long resultsTtlMs;
 
     @Setup
     public void prepare() throws IOException {
-        db = new TestGraphDatabaseFactory().newImpermanentDatabase();
+        System.setProperty("results.ttl.ms", String.valueOf(resultsTtlMs));
+        Fixture fixture = new Fixture(userCount, itemCount, likesCount, dislikesCount, skew, 42);
+        // The similar user lists computed below are written to a copy, the cached fixture stays as generated
+        db = fixture.openCopy();
         service = new Service();
-        service.migrate(db);
-        populateDb(db);
+
+        Random rand = new Random(7);
+        targets = new String[targetCount];
+        for (int i = 0; i < targetCount; i++) {
+            targets[i] = fixture.username(rand.nextInt(userCount));
+        }
+
+        ServiceState state = ServiceState.forDatabase(db);
+        state.itemUsers.build(db);
+        targetIds = new long[targetCount];
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < targetCount; i++) {
+                Node user = db.findNode(Labels.User, "username", targets[i]);
+                targetIds[i] = user.getId();
+                if (!user.hasProperty(SimilarUsersStore.USERS)) {
+                    state.similarUsers.refresh(user.getId());
+                }
+            }
+        }
+        state.similarUsers.flush();
     }
 
     @TearDown
@@ -50,88 +81,48 @@ public class ServiceBenchmark {
         db.shutdown();
     }
 
-    private void populateDb(GraphDatabaseService db) throws IOException {
-        ArrayList<Node> users = new ArrayList<>();
-        ArrayList<Node> items = new ArrayList<>();
-        Random rand = new Random();
+    // Each thread walks the targets in its own random order
+    @State(Scope.Thread)
+    public static class Target {
+        private final Random rand = new Random();
 
-        try (Transaction tx = db.beginTx()) {
-            for (int i = 0; i < userCount; i++) {
-                users.add(createNode(db, Labels.User.toString(), "username", "user" + String.valueOf(i)));
-            }
-            tx.success();
+        String next(ServiceBenchmark benchmark) {
+            return benchmark.targets[rand.nextInt(benchmark.targets.length)];
         }
 
-        try (Transaction tx = db.beginTx()) {
-            for (int i = 0; i < (itemCount + 5); i++){
-                items.add(createNode(db, Labels.Item.toString(), "name", "thing" + String.valueOf(i)));
-            }
-            tx.success();
+        long nextId(ServiceBenchmark benchmark) {
+            return benchmark.targetIds[rand.nextInt(benchmark.targetIds.length)];
         }
-        Transaction tx = db.beginTx();
-        try  {
-            for (int i = 0; i < userCount; i++){
-                Node user =  users.get(i);
-
-                for (int j = 0; j < likesCount; j++) {
-                    int randomItem = rand.nextInt(itemCount);
-                    user.createRelationshipTo(items.get(randomItem), RelationshipTypes.LIKES);
-                }
+    }
 
-                for (int j = 0; j < purchaseCount; j++) {
-                    int randomItem = rand.nextInt(itemCount);
-                    user.createRelationshipTo(items.get(randomItem), RelationshipTypes.PURCHASED);
-                }
+    @Benchmark
+    public void measureRecommend(Target target) throws IOException {
+        Fixture.write(service.Recommend(target.next(this), 10, 0, false, null, db));
+    }
 
-                RoaringBitmap dislikes = new RoaringBitmap();
-                for (int j = 0; j < dislikesCount; j++) {
-                    int randomItem = rand.nextInt(itemCount);
-                    dislikes.add(((Number)items.get(randomItem).getId()).intValue());
-                    user.createRelationshipTo(items.get(randomItem), RelationshipTypes.DISLIKES);
-                }
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                dislikes.serialize(new DataOutputStream(baos));
-                user.setProperty("dislikes", baos.toByteArray());
-
-                if(i % 100 == 0){
-                    tx.success();
-                    tx.close();
-                    tx = db.beginTx();
-                }
+    @Benchmark
+    public void measureRecommend2(Target target) throws IOException {
+        Fixture.write(service.Recommend2(target.next(this), 10, 0, null, db));
+    }
 
-            }
-        tx.success();
-    } finally {
-            tx.close();
-        }
+    @Benchmark
+    public void measureRecommend2ById(Target target) throws IOException {
+        Fixture.write(service.Recommend2ById(target.nextId(this), 10, 0, null, db));
     }
 
-    private Node createNode(GraphDatabaseService db, String label, String property, String value) {
-        Node node = db.createNode(DynamicLabel.label(label));
-        node.setProperty(property, value);
-        return node;
+    @Benchmark
+    public void measureRecommend3(Target target) throws IOException {
+        Fixture.write(service.Recommend3(target.next(this), 10, 0, false, false, null, 0, 0, db));
     }
 
     @Benchmark
-    @Warmup(iterations = 10)
-    @Measurement(iterations = 5)
-    @Fork(1)
-    @Threads(4)
-    @BenchmarkMode(Mode.Throughput)
-    @OutputTimeUnit(TimeUnit.SECONDS)
-    public void measureRecommend() throws IOException {
-        service.Recommend("user10", db);
+    public void measureRecommend3Index(Target target) throws IOException {
+        Fixture.write(service.Recommend3(target.next(this), 10, 0, true, false, null, 0, 0, db));
     }
 
     @Benchmark
-    @Warmup(iterations = 10)
-    @Measurement(iterations = 5)
-    @Fork(1)
-    @Threads(4)
-    @BenchmarkMode(Mode.Throughput)
-    @OutputTimeUnit(TimeUnit.SECONDS)
-    public void measureRecommend2() throws IOException {
-        service.Recommend2("user10", db);
+    public void measureRecommend3Precomputed(Target target) throws IOException {
+        Fixture.write(service.Recommend3(target.next(this), 10, 0, false, true, null, 0, 0, db));
     }
 
 }
@@ -1,27 +1,41 @@
 package com.maxdemarzi;
 
+import net.openhft.koloboke.collect.map.hash.HashLongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
+import net.openhft.koloboke.collect.set.hash.HashLongSets;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.neo4j.graphdb.Direction;
 import org.neo4j.graphdb.DynamicLabel;
 import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
 import org.neo4j.test.TestGraphDatabaseFactory;
 import org.roaringbitmap.RoaringBitmap;
 
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class ServiceTest {
     private GraphDatabaseService db;
@@ -77,6 +91,12 @@ public class ServiceTest {
         return node;
     }
 
+    private ArrayList<HashMap<String, Object>> readItems(Response response) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ((StreamingOutput) response.getEntity()).write(baos);
+        return objectMapper.readValue(baos.toByteArray(), ArrayList.class);
+    }
+
     @After
     public void tearDown() throws Exception {
         db.shutdown();
@@ -84,11 +104,11 @@ public class ServiceTest {
 
     @Test
     public void shouldGetRecommendation() throws IOException {
-        Response response = service.Recommend("user10", db);
+        Response response = service.Recommend("user10", 10, 0, false, null, db);
 
         assertEquals(200, response.getStatus());
 
-        ArrayList<HashMap<String, Object>> actual = objectMapper.readValue((String) response.getEntity(), ArrayList.class);
+        ArrayList<HashMap<String, Object>> actual = readItems(response);
 
         ArrayList<HashMap<String, Object>> expected = new ArrayList<HashMap<String,Object>>() {{
             add(new HashMap<String, Object>() {{
@@ -107,12 +127,26 @@ public class ServiceTest {
         assertEquals(new HashSet(expected), new HashSet(actual));
     }
 
+    @Test
+    public void shouldExcludeMigratedDislikes() throws IOException {
+        ArrayList<HashMap<String, Object>> expected = readItems(service.Recommend("user10", 10, 0, false, null, db));
+        // Only the bitmap is left once a migration has deleted the relationships
+        try (Transaction tx = db.beginTx()) {
+            for (Relationship rel : db.findNode(Labels.User, "username", "user10")
+                    .getRelationships(RelationshipTypes.DISLIKES, Direction.OUTGOING)) {
+                rel.delete();
+            }
+            tx.success();
+        }
+        assertEquals(new HashSet(expected), new HashSet(readItems(service.Recommend("user10", 10, 0, false, null, db))));
+    }
+
     @Test
     public void shouldGetRecommendation2() throws IOException {
-        Response response = service.Recommend2("user10", db);
+        Response response = service.Recommend2("user10", 10, 0, null, db);
         assertEquals(200, response.getStatus());
 
-        ArrayList<HashMap<String, Object>> actual = objectMapper.readValue((String) response.getEntity(), ArrayList.class);
+        ArrayList<HashMap<String, Object>> actual = readItems(response);
 
         ArrayList<HashMap<String, Object>> expected = new ArrayList<HashMap<String,Object>>() {{
             add(new HashMap<String, Object>() {{
@@ -132,6 +166,553 @@ public class ServiceTest {
         assertEquals(new HashSet(expected), new HashSet(actual));
     }
 
+    @Test
+    public void shouldRecordMetrics() throws IOException {
+        readItems(service.Recommend2("user10", 10, 0, null, db));
+        String metrics = (String) service.metrics(db).getEntity();
+        assertTrue(metrics.contains("recommend2_requests_total 1\n"));
+        assertTrue(metrics.contains("recommend2_phase_seconds_count{phase=\"serialization\"} 1\n"));
+        assertFalse(metrics.contains("recommend2_relationships_traversed_total 0\n"));
+        assertFalse(metrics.contains("recommend2_bytes_emitted_total 0\n"));
+    }
+
+    @Test
+    public void shouldCacheResultsPerUser() throws Exception {
+        final ArrayList<HashMap<String, Object>> expected = readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db));
+        Thread[] requests = new Thread[8];
+        // Each thread's items or what it threw, checked here since a failed assertion only ends its own thread
+        final Object[] outcomes = new Object[requests.length];
+        for (int i = 0; i < requests.length; i++) {
+            final int at = i;
+            requests[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        outcomes[at] = readItems(service.Recommend2("user10", 10, 0, null, db));
+                    } catch (Throwable e) {
+                        outcomes[at] = e;
+                    }
+                }
+            });
+            requests[i].start();
+        }
+        for (Thread request : requests) {
+            request.join();
+        }
+        for (Object outcome : outcomes) {
+            assertEquals(expected, outcome);
+        }
+        assertEquals(expected.subList(1, 3), readItems(service.Recommend2("user10", 2, 1, null, db)));
+
+        Map results = (Map) objectMapper.readValue((String) service.stats(db).getEntity(), HashMap.class).get("results");
+        assertEquals(1, results.get("misses"));
+        assertEquals(8, (Integer) results.get("hits") + (Integer) results.get("coalesced"));
+
+        try (Transaction tx = db.beginTx()) {
+            db.findNode(Labels.User, "username", "user10")
+                    .createRelationshipTo(db.findNode(Labels.Item, "name", "thing9"), RelationshipTypes.LIKES);
+            tx.success();
+        }
+        ArrayList<HashMap<String, Object>> actual = readItems(service.Recommend2("user10", 10, 0, null, db));
+        for (HashMap<String, Object> item : actual) {
+            assertFalse("thing9".equals(item.get("name")));
+        }
+        results = (Map) objectMapper.readValue((String) service.stats(db).getEntity(), HashMap.class).get("results");
+        assertEquals(2, results.get("misses"));
+    }
+
+    @Test
+    public void shouldRecommendByNodeId() throws IOException {
+        long id;
+        long itemId;
+        try (Transaction tx = db.beginTx()) {
+            id = db.findNode(Labels.User, "username", "user10").getId();
+            itemId = db.findNode(Labels.Item, "name", "thing9").getId();
+        }
+        ArrayList<HashMap<String, Object>> expected = readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db));
+        assertEquals(expected, readItems(service.Recommend3ById(id, 10, 0, false, false, null, 0, 0, db)));
+        assertEquals(expected, readItems(service.Recommend2ById(id, 10, 0, null, db)));
+        assertEquals(new HashSet(expected), new HashSet(readItems(service.RecommendById(id, 10, 0, false, null, db))));
+        // Items are not users
+        assertTrue(readItems(service.Recommend2ById(itemId, 10, 0, null, db)).isEmpty());
+        assertTrue(readItems(service.Recommend3ById(Long.MAX_VALUE, 10, 0, false, false, null, 0, 0, db)).isEmpty());
+    }
+
+    @Test
+    public void shouldRecommendOnLanes() throws Exception {
+        ArrayList<HashMap<String, Object>> expected = readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db));
+        assertEquals(expected, readItems(service.AsyncRecommend3("user10", 10, 0, false, false, null, 0, 0, db)));
+        assertEquals(expected, readItems(service.AsyncRecommend2("user10", 10, 0, null, db)));
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), service.AsyncRecommend2("user10", 0, 0, null, db).getStatus());
+        assertTrue(readItems(service.AsyncRecommend2("nobody", 10, 0, null, db)).isEmpty());
+
+        Map lanes = (Map) objectMapper.readValue((String) service.stats(db).getEntity(), HashMap.class).get("lanes");
+        assertEquals(0, ((Map) lanes.get("light")).get("timedOut"));
+        assertEquals(0, ((Map) lanes.get("heavy")).get("rejected"));
+        assertTrue(((String) service.metrics(db).getEntity()).contains("lane_queue_depth{lane=\"heavy\"} 0"));
+    }
+
+    @Test
+    public void shouldWarmUpBeforeReportingHealthy() throws IOException {
+        assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), service.health(db).getStatus());
+        ServiceState state = ServiceState.forDatabase(db);
+        state.warmUp.run();
+
+        Response response = service.health(db);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus());
+        Map health = objectMapper.readValue((String) response.getEntity(), HashMap.class);
+        assertEquals("done", health.get("phase"));
+        assertEquals(100, health.get("users"));
+        Map stats = objectMapper.readValue((String) service.stats(db).getEntity(), HashMap.class);
+        assertEquals(105, ((Map) stats.get("itemJson")).get("entries"));
+        assertEquals(100, ((Map) stats.get("dislikes")).get("entries"));
+
+        // Requests start out warm
+        readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db));
+        assertEquals(1, ((Map) objectMapper.readValue((String) service.stats(db).getEntity(), HashMap.class).get("userIds")).get("hits"));
+    }
+
+    @Test
+    public void shouldFollowUsernameChanges() throws IOException {
+        ArrayList<HashMap<String, Object>> expected = readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db));
+        assertEquals(expected, readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db)));
+        Map userIds = (Map) objectMapper.readValue((String) service.stats(db).getEntity(), HashMap.class).get("userIds");
+        assertEquals(1, userIds.get("hits"));
+
+        try (Transaction tx = db.beginTx()) {
+            db.findNode(Labels.User, "username", "user10").setProperty("username", "renamed");
+            tx.success();
+        }
+        assertTrue(readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db)).isEmpty());
+        assertEquals(expected, readItems(service.Recommend3("renamed", 10, 0, false, false, null, 0, 0, db)));
+        userIds = (Map) objectMapper.readValue((String) service.stats(db).getEntity(), HashMap.class).get("userIds");
+        assertEquals(2, userIds.get("hits"));
+    }
+
+    @Test
+    public void shouldForgetDeletedUsers() throws IOException {
+        readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db));
+        Map userIds = (Map) objectMapper.readValue((String) service.stats(db).getEntity(), HashMap.class).get("userIds");
+        int entries = (Integer) userIds.get("entries");
+
+        try (Transaction tx = db.beginTx()) {
+            Node user = db.findNode(Labels.User, "username", "user10");
+            for (Relationship rel : user.getRelationships()) {
+                rel.delete();
+            }
+            user.delete();
+            tx.success();
+        }
+        userIds = (Map) objectMapper.readValue((String) service.stats(db).getEntity(), HashMap.class).get("userIds");
+        assertEquals(entries - 1, userIds.get("entries"));
+        try (Transaction tx = db.beginTx()) {
+            assertNull(ServiceState.forDatabase(db).userIds.find(db, "user10"));
+        }
+    }
+
+    @Test
+    public void shouldGetRecommendation3() throws IOException {
+        Response response = service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db);
+        assertEquals(200, response.getStatus());
+
+        ArrayList<HashMap<String, Object>> actual = readItems(response);
+
+        ArrayList<HashMap<String, Object>> expected = new ArrayList<HashMap<String,Object>>() {{
+            add(new HashMap<String, Object>() {{
+                put("name", "thing9");
+            }});
+            add(new HashMap<String, Object>() {{
+                put("name", "thing8");
+            }});
+            add(new HashMap<String, Object>() {{
+                put("name", "thing16");
+            }});
+            add(new HashMap<String, Object>() {{
+                put("name", "thing7");
+            }});
+
+        }};
+        assertEquals(new HashSet(expected), new HashSet(actual));
+    }
+
+    @Test
+    public void shouldGetRecommendation3FromIndex() throws IOException {
+        ServiceState.forDatabase(db).itemUsers.build(db);
+        ArrayList<HashMap<String, Object>> traversed = readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db));
+        ArrayList<HashMap<String, Object>> indexed = readItems(service.Recommend3("user10", 10, 0, true, false, null, 0, 0, db));
+        assertEquals(traversed, indexed);
+
+        // A new user who purchased what user10 purchased should show up through the index
+        try (Transaction tx = db.beginTx()) {
+            Node user = createNode(db, Labels.User.toString(), "username", "user100");
+            user.createRelationshipTo(db.findNode(Labels.Item, "name", "thing12"), RelationshipTypes.PURCHASED);
+            user.createRelationshipTo(db.findNode(Labels.Item, "name", "thing13"), RelationshipTypes.PURCHASED);
+            user.createRelationshipTo(db.findNode(Labels.Item, "name", "thing50"), RelationshipTypes.PURCHASED);
+            tx.success();
+        }
+        indexed = readItems(service.Recommend3("user10", 10, 0, true, false, null, 0, 0, db));
+        assertTrue(indexed.contains(new HashMap<String, Object>() {{
+            put("name", "thing50");
+        }}));
+    }
+
+    @Test
+    public void shouldKeepIndexInStepWithTheGraph() throws IOException {
+        ItemUserIndex index = ServiceState.forDatabase(db).itemUsers;
+        index.build(db);
+        int userId;
+        long itemId;
+        try (Transaction tx = db.beginTx()) {
+            Node user = db.findNode(Labels.User, "username", "user10");
+            Node item = db.findNode(Labels.Item, "name", "thing12");
+            userId = (int) user.getId();
+            itemId = item.getId();
+            user.createRelationshipTo(item, RelationshipTypes.PURCHASED);
+            tx.success();
+        }
+        // Deleting one of the two purchases keeps the user, deleting the other drops them
+        for (int remaining = 1; remaining >= 0; remaining--) {
+            try (Transaction tx = db.beginTx()) {
+                for (Relationship rel : db.getNodeById(itemId).getRelationships(RelationshipTypes.PURCHASED, Direction.INCOMING)) {
+                    if (rel.getStartNode().getId() == userId) {
+                        rel.delete();
+                        break;
+                    }
+                }
+                tx.success();
+            }
+            assertEquals(remaining == 1, index.purchasers(itemId).contains(userId));
+        }
+
+        try (Transaction tx = db.beginTx()) {
+            Node item = db.findNode(Labels.Item, "name", "thing103");
+            for (Relationship rel : item.getRelationships()) {
+                rel.delete();
+            }
+            item.delete();
+            tx.success();
+        }
+        assertEquals(104, index.stats().get("items"));
+    }
+
+    @Test
+    public void shouldMaintainPrecomputedSimilarUsers() throws IOException {
+        ArrayList<HashMap<String, Object>> traversed = readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db));
+        // The first request computes the list, the next ones read it
+        assertEquals(traversed, readItems(service.Recommend3("user10", 10, 0, false, true, null, 0, 0, db)));
+        ServiceState state = ServiceState.forDatabase(db);
+        state.similarUsers.flush();
+        assertEquals(traversed, readItems(service.Recommend3("user10", 10, 0, false, true, null, 0, 0, db)));
+
+        long newcomerId;
+        try (Transaction tx = db.beginTx()) {
+            Node newcomer = createNode(db, Labels.User.toString(), "username", "newcomer");
+            newcomerId = newcomer.getId();
+            newcomer.createRelationshipTo(db.findNode(Labels.Item, "name", "thing12"), RelationshipTypes.PURCHASED);
+            newcomer.createRelationshipTo(db.findNode(Labels.Item, "name", "thing13"), RelationshipTypes.PURCHASED);
+            newcomer.createRelationshipTo(db.findNode(Labels.Item, "name", "thing10"), RelationshipTypes.LIKES);
+            tx.success();
+        }
+        state.similarUsers.flush();
+
+        try (Transaction tx = db.beginTx()) {
+            Node user = db.findNode(Labels.User, "username", "user10");
+            long[] ids = (long[]) user.getProperty(SimilarUsersStore.USERS);
+            int[] scores = (int[]) user.getProperty(SimilarUsersStore.SCORES);
+            // 5 points for each shared purchase and 2 for the shared like puts the newcomer ahead of user11
+            assertEquals(newcomerId, ids[0]);
+            assertEquals(12, scores[0]);
+        }
+    }
+
+    @Test
+    public void shouldCountUsersPastTheFanout() throws IOException {
+        readItems(service.Recommend3("user10", 10, 0, false, true, null, 0, 0, db));
+        ServiceState.forDatabase(db).similarUsers.flush();
+        SimilarUsersStore store = new SimilarUsersStore(db, 1, 1000000, 100000);
+        db.registerTransactionEventHandler(store);
+        try {
+            try (Transaction tx = db.beginTx()) {
+                Node newcomer = createNode(db, Labels.User.toString(), "username", "newcomer");
+                newcomer.createRelationshipTo(db.findNode(Labels.Item, "name", "thing12"), RelationshipTypes.PURCHASED);
+                tx.success();
+            }
+            store.flush();
+            // thing12 has four users besides the newcomer, only the first one is looked at
+            assertEquals(4L, store.stats().get("fanoutSkipped"));
+        } finally {
+            db.unregisterTransactionEventHandler(store);
+            store.stop();
+        }
+    }
+
+    @Test
+    public void shouldPrecomputeRecommendations() throws IOException {
+        assertEquals(400, service.startPrecompute(0, 1000, Service.MAX_RESULTS + 1, db).getStatus());
+        assertEquals(400, service.startPrecompute(Service.MAX_JOB_THREADS + 1, 1000, 100, db).getStatus());
+        File checkpoint = File.createTempFile("precompute", ".checkpoint");
+        long user10;
+        try (Transaction tx = db.beginTx()) {
+            user10 = db.findNode(Labels.User, "username", "user10").getId();
+        }
+        // Resume as if a run had died after user10
+        try (FileWriter writer = new FileWriter(checkpoint)) {
+            writer.write(Long.toString(user10));
+        }
+        PrecomputeJob job = new PrecomputeJob(db, checkpoint, 4, 7, 100);
+        job.run();
+        assertEquals(user10, job.progress().get("resumedAfter"));
+        assertEquals(89, job.progress().get("users"));
+        assertFalse(checkpoint.exists());
+        try (Transaction tx = db.beginTx()) {
+            assertFalse(db.findNode(Labels.User, "username", "user10").hasProperty(PrecomputeJob.PROPERTY));
+            assertTrue(db.findNode(Labels.User, "username", "user11").hasProperty(PrecomputeJob.PROPERTY));
+        }
+
+        new PrecomputeJob(db, checkpoint, 4, 7, 100).run();
+        ArrayList<HashMap<String, Object>> expected = readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db));
+        assertEquals(expected, readItems(service.Recommend("user10", 10, 0, true, null, db)));
+        assertEquals(expected.subList(2, 4), readItems(service.Recommend("user10", 2, 2, true, null, db)));
+    }
+
+    @Test
+    public void shouldMigrateDislikeRelationships() throws IOException {
+        try (Transaction tx = db.beginTx()) {
+            Node user = db.findNode(Labels.User, "username", "user10");
+            user.removeProperty("dislikes");
+            user.createRelationshipTo(db.findNode(Labels.Item, "name", "thing20"), RelationshipTypes.DISLIKES);
+            // More than a batch, so its deletes take transactions of their own
+            Node large = db.findNode(Labels.User, "username", "user20");
+            for (int i = 30; i < 33; i++) {
+                large.createRelationshipTo(db.findNode(Labels.Item, "name", "thing" + i), RelationshipTypes.DISLIKES);
+            }
+            tx.success();
+        }
+        File checkpoint = File.createTempFile("migrate", ".checkpoint");
+        checkpoint.delete();
+        DislikesMigration migration = new DislikesMigration(db, checkpoint, 4, 7, 3, true);
+        migration.run();
+        assertEquals(204L, migration.progress().get("migrated"));
+        assertEquals(204L, migration.progress().get("deleted"));
+        assertEquals(0, migration.progress().get("failedChunks"));
+        assertFalse(checkpoint.exists());
+
+        try (Transaction tx = db.beginTx()) {
+            Node user = db.findNode(Labels.User, "username", "user10");
+            assertFalse(user.hasRelationship(RelationshipTypes.DISLIKES));
+            DislikeBitmap.Builder dislikes = DislikesCache.read(user);
+            assertEquals(3, dislikes.cardinality());
+            for (String name : new String[]{"thing14", "thing15", "thing20"}) {
+                assertTrue(dislikes.contains(db.findNode(Labels.Item, "name", name).getId()));
+            }
+            Node large = db.findNode(Labels.User, "username", "user20");
+            assertFalse(large.hasRelationship(RelationshipTypes.DISLIKES));
+            assertEquals(5, DislikesCache.read(large).cardinality());
+        }
+    }
+
+    @Test
+    public void shouldCoalesceDislikeUpdates() throws Exception {
+        final long[] items = new long[10];
+        try (Transaction tx = db.beginTx()) {
+            for (int i = 0; i < items.length; i++) {
+                items[i] = db.findNode(Labels.Item, "name", "thing" + (30 + i)).getId();
+            }
+        }
+        Thread[] swipes = new Thread[items.length];
+        // Failures in the threads are only seen here once they are joined
+        final Object[] outcomes = new Object[items.length];
+        for (int i = 0; i < swipes.length; i++) {
+            final int swipe = i;
+            swipes[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        outcomes[swipe] = service.addDislikes("user10", Collections.<Long>emptyList(), String.valueOf(items[swipe]), db).getStatus();
+                    } catch (Exception e) {
+                        outcomes[swipe] = e;
+                    }
+                }
+            });
+            swipes[i].start();
+        }
+        for (Thread swipe : swipes) {
+            swipe.join();
+        }
+        for (Object outcome : outcomes) {
+            assertEquals(204, outcome);
+        }
+        assertEquals(204, service.removeDislikes("user10", Collections.singletonList(items[0]), null, db).getStatus());
+        assertEquals(400, service.addDislikes("user10", Collections.<Long>emptyList(), "[\"thing\"]", db).getStatus());
+        assertEquals(404, service.addDislikes("nobody", Collections.<Long>emptyList(), "[1]", db).getStatus());
+
+        try (Transaction tx = db.beginTx()) {
+            DislikeBitmap.Builder dislikes = DislikesCache.read(db.findNode(Labels.User, "username", "user10"));
+            // The two from the fixture plus the nine left
+            assertEquals(11, dislikes.cardinality());
+            assertFalse(dislikes.contains(items[0]));
+            assertTrue(dislikes.contains(items[9]));
+        }
+        Map writer = (Map) objectMapper.readValue((String) service.stats(db).getEntity(), HashMap.class).get("dislikesWriter");
+        assertEquals(11, writer.get("updates"));
+    }
+
+    @Test
+    public void shouldOnlyFailTheUsersThatFail() throws Exception {
+        long goodId;
+        long badId;
+        long itemId;
+        try (Transaction tx = db.beginTx()) {
+            goodId = db.findNode(Labels.User, "username", "user10").getId();
+            Node bad = db.findNode(Labels.User, "username", "user26");
+            badId = bad.getId();
+            bad.setProperty(DislikesCache.PROPERTY, new byte[]{0x7F, 9});
+            itemId = db.findNode(Labels.Item, "name", "thing40").getId();
+            tx.success();
+        }
+        // Both in the same stripe and window
+        assertEquals(goodId & 15, badId & 15);
+        DislikesWriter writer = new DislikesWriter(db, 50, 1);
+        try {
+            DislikesWriter.Batch good = writer.update(goodId, new long[]{itemId}, true);
+            DislikesWriter.Batch bad = writer.update(badId, new long[]{itemId}, true);
+            assertTrue(good == bad);
+            assertTrue(good.await(goodId, 10000));
+            try {
+                bad.await(badId, 10000);
+                fail();
+            } catch (IllegalStateException e) {
+                // Unreadable dislikes
+            }
+            assertEquals(1L, writer.stats().get("splits"));
+            assertEquals(1L, writer.stats().get("failures"));
+        } finally {
+            writer.stop();
+        }
+        try (Transaction tx = db.beginTx()) {
+            assertTrue(DislikesCache.read(db.getNodeById(goodId)).contains(itemId));
+        }
+        assertEquals(503, service.addDislikes("user26", Collections.<Long>emptyList(), String.valueOf(itemId), db).getStatus());
+    }
+
+    @Test
+    public void shouldGetBatchRecommendations() throws IOException {
+        Response response = service.RecommendBatch("[\"user10\", \"user11\", \"nobody\"]", 10, 2, null, db);
+        assertEquals(200, response.getStatus());
+
+        ArrayList<HashMap<String, Object>> actual = readItems(response);
+
+        assertEquals(3, actual.size());
+        assertEquals("user10", actual.get(0).get("username"));
+        ArrayList<HashMap<String, Object>> expected = readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db));
+        assertEquals(expected, actual.get(0).get("items"));
+        assertEquals("nobody", actual.get(2).get("username"));
+        assertTrue(((List) actual.get(2).get("items")).isEmpty());
+        assertEquals(400, service.RecommendBatch("[\"user10\"", 10, 2, null, db).getStatus());
+        assertEquals(400, service.RecommendBatch("{\"user10\": 1}", 10, 2, null, db).getStatus());
+    }
+
+    @Test
+    public void shouldProjectFields() throws IOException {
+        ArrayList<HashMap<String, Object>> all = readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db));
+        ArrayList<HashMap<String, Object>> names = readItems(service.Recommend3("user10", 10, 0, false, false, "name", 0, 0, db));
+        assertEquals(all, names);
+
+        ArrayList<HashMap<String, Object>> ids = readItems(service.Recommend3("user10", 10, 0, false, false, "_id", 0, 0, db));
+        assertEquals(all.size(), ids.size());
+        for (HashMap<String, Object> item : ids) {
+            assertEquals(Collections.singleton("_id"), item.keySet());
+        }
+    }
+
+    @Test
+    public void shouldScoreHeavyUsersInParallel() throws IOException {
+        HashLongIntMap sequential = HashLongIntMaps.newMutableMap();
+        HashLongIntMap parallel = HashLongIntMaps.newMutableMap();
+        ParallelScorer scorer = new ParallelScorer(4, 1);
+        Budget budget = new Budget();
+        budget.reset(Long.MAX_VALUE, Integer.MAX_VALUE);
+
+        try (Transaction tx = db.beginTx()) {
+            Node user = db.findNode(Labels.User, "username", "user10");
+            assertTrue(scorer.isHeavy(user));
+            Service.scoreOtherUsers(user, HashLongSets.newMutableSet(), HashLongSets.newMutableSet(), sequential, budget);
+            scorer.scoreOtherUsers(db, user, HashLongSets.newMutableSet(), HashLongSets.newMutableSet(), parallel, budget);
+        }
+        assertFalse(sequential.isEmpty());
+        assertEquals(sequential, parallel);
+    }
+
+    @Test
+    public void shouldReportTruncatedTraversals() throws IOException {
+        Response response = service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db);
+        assertEquals(false, response.getMetadata().getFirst(Service.TRUNCATED));
+        assertEquals(1.0, response.getMetadata().getFirst(Service.COMPLETED));
+
+        response = service.Recommend3("user10", 10, 0, false, false, null, 5, 0, db);
+        assertEquals(true, response.getMetadata().getFirst(Service.TRUNCATED));
+        assertEquals(5L, response.getMetadata().getFirst(Service.RELATIONSHIPS_TOUCHED));
+
+        assertEquals(400, service.Recommend3("user10", 10, 0, false, false, null, 0, Long.MAX_VALUE, db).getStatus());
+    }
+
+    @Test
+    public void shouldPageRecommendations() throws IOException {
+        ArrayList<HashMap<String, Object>> all = readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db));
+        ArrayList<HashMap<String, Object>> first = readItems(service.Recommend3("user10", 2, 0, false, false, null, 0, 0, db));
+        ArrayList<HashMap<String, Object>> second = readItems(service.Recommend3("user10", 2, 2, false, false, null, 0, 0, db));
+
+        assertEquals(all.subList(0, 2), first);
+        assertEquals(all.subList(2, 4), second);
+        assertEquals(400, service.Recommend3("user10", 0, 0, false, false, null, 0, 0, db).getStatus());
+        assertEquals(400, service.Recommend3("user10", Integer.MAX_VALUE, 1, false, false, null, 0, 0, db).getStatus());
+        assertEquals(400, service.Recommend2("user10", Service.MAX_RESULTS, 1, null, db).getStatus());
+        assertEquals(400, service.Recommend("user10", 1, Service.MAX_RESULTS, false, null, db).getStatus());
+        assertEquals(all, readItems(service.Recommend3("user10", Service.MAX_RESULTS, 0, false, false, null, 0, 0, db)));
+    }
+
+    @Test
+    public void shouldInvalidateCachedDislikes() throws IOException {
+        service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db);
+        service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db);
+
+        HashMap<String, Object> stats = objectMapper.readValue((String) service.stats(db).getEntity(), HashMap.class);
+        assertEquals(1, ((Map) stats.get("dislikes")).get("hits"));
+
+        try (Transaction tx = db.beginTx()) {
+            Node user = db.findNode(Labels.User, "username", "user10");
+            Node item = db.findNode(Labels.Item, "name", "thing9");
+            RoaringBitmap dislikes = RoaringBitmap.bitmapOf(((Number) item.getId()).intValue());
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            dislikes.serialize(new DataOutputStream(baos));
+            user.setProperty("dislikes", baos.toByteArray());
+            tx.success();
+        }
+
+        ArrayList<HashMap<String, Object>> actual = readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db));
+        for (HashMap<String, Object> item : actual) {
+            assertFalse("thing9".equals(item.get("name")));
+        }
+    }
+
+    @Test
+    public void shouldInvalidateCachedItemJson() throws IOException {
+        ArrayList<HashMap<String, Object>> expected = readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db));
+        assertEquals(expected, readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db)));
+
+        HashMap<String, Object> stats = objectMapper.readValue((String) service.stats(db).getEntity(), HashMap.class);
+        assertEquals(expected.size(), ((Map) stats.get("itemJson")).get("hits"));
+
+        String name = (String) expected.get(0).get("name");
+        try (Transaction tx = db.beginTx()) {
+            db.findNode(Labels.Item, "name", name).setProperty("price", 5);
+            tx.success();
+        }
+        ArrayList<HashMap<String, Object>> actual = readItems(service.Recommend3("user10", 10, 0, false, false, null, 0, 0, db));
+        assertEquals(5, actual.get(0).get("price"));
+        assertEquals(expected.subList(1, expected.size()), actual.subList(1, actual.size()));
+    }
+
     @Test
     public void shouldbeSmallSize() throws IOException {
         RoaringBitmap dislikes = new RoaringBitmap();
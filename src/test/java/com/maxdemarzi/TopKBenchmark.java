@@ -0,0 +1,65 @@
+package com.maxdemarzi;
+
+import net.openhft.koloboke.collect.map.hash.HashLongIntMap;
+import net.openhft.koloboke.collect.map.hash.HashLongIntMaps;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+public class TopKBenchmark {
+
+    private TopK topK;
+    private long[] ids;
+    private int[] scores;
+    private HashLongIntMap candidateMap;
+
+    @Param({"10", "100", "1000"})
+    public int k;
+
+    @Param({"1000000"})
+    public int candidates;
+
+    @Setup
+    public void prepare() {
+        Random rand = new Random(42);
+        ids = new long[candidates];
+        scores = new int[candidates];
+        for (int i = 0; i < candidates; i++) {
+            ids[i] = rand.nextInt(Integer.MAX_VALUE);
+            scores[i] = rand.nextInt(1000);
+        }
+        topK = new TopK(k);
+        candidateMap = HashLongIntMaps.newMutableMap(candidates);
+        for (int i = 0; i < candidates; i++) {
+            candidateMap.put(ids[i], scores[i]);
+        }
+    }
+
+    @Benchmark
+    @Warmup(iterations = 10)
+    @Measurement(iterations = 5)
+    @Fork(1)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long[] measureTopK() {
+        topK.reset(k);
+        for (int i = 0; i < candidates; i++) {
+            topK.offer(ids[i], scores[i]);
+        }
+        return topK.toArray(0);
+    }
+
+    // As called by the recommendations, straight from the scoring map
+    @Benchmark
+    @Warmup(iterations = 10)
+    @Measurement(iterations = 5)
+    @Fork(1)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public long[] measureFindTopK() {
+        return Service.findTopK(topK, candidateMap, k, 0);
+    }
+
+}
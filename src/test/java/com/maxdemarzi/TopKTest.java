@@ -0,0 +1,64 @@
+package com.maxdemarzi;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TopKTest {
+
+    @Test
+    public void shouldKeepHighestScores() {
+        TopK topK = new TopK(3);
+        topK.offer(1, 10);
+        topK.offer(2, 50);
+        topK.offer(3, 20);
+        topK.offer(4, 40);
+        topK.offer(5, 30);
+        assertArrayEquals(new long[]{2, 4, 5}, topK.toArray(0));
+    }
+
+    @Test
+    public void shouldBreakTiesByLowestId() {
+        TopK topK = new TopK(3);
+        for (long id = 9; id > 0; id--) {
+            topK.offer(id, 7);
+        }
+        assertArrayEquals(new long[]{1, 2, 3}, topK.toArray(0));
+    }
+
+    @Test
+    public void shouldShrinkAfterOversizedSelections() {
+        TopK topK = new TopK(2);
+        topK.reset(1000);
+        for (long id = 0; id < 1000; id++) {
+            topK.offer(id, (int) id);
+        }
+        assertEquals(1000, topK.toArray(0).length);
+        topK.shrink(2);
+        topK.offer(1, 1);
+        topK.offer(2, 2);
+        topK.offer(3, 3);
+        assertArrayEquals(new long[]{3, 2}, topK.toArray(0));
+    }
+
+    @Test
+    public void shouldPageWithOffset() {
+        TopK topK = new TopK(4);
+        Random rand = new Random(42);
+        for (long id = 0; id < 1000; id++) {
+            topK.offer(id, rand.nextInt(10));
+        }
+        long[] firstFour = topK.toArray(0);
+
+        topK.reset(4);
+        rand = new Random(42);
+        for (long id = 0; id < 1000; id++) {
+            topK.offer(id, rand.nextInt(10));
+        }
+        assertArrayEquals(new long[]{firstFour[2], firstFour[3]}, topK.toArray(2));
+        assertEquals(0, topK.toArray(5).length);
+    }
+}